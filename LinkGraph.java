@@ -0,0 +1,333 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Converts the "page: l1 l2 ..." text link files into a block compressed
+// SequenceFile of IntWritable page -> LinkListWritable out-links. The link
+// assignments read it with -D linkformat=binary.
+public class LinkGraph extends Configured implements Tool {
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new LinkGraph(), args);
+    System.exit(res);
+  }
+
+  // Jobs this run completed, in order, with their wall times, so that a
+  // caller such as bench/JobBench can read their counters once run() returns
+  private final List<Job> jobs = new ArrayList<Job>();
+  private final List<Long> jobMillis = new ArrayList<Long>();
+
+  public List<Job> getJobs() {
+    return jobs;
+  }
+
+  public List<Long> getJobMillis() {
+    return jobMillis;
+  }
+
+  private boolean runJob(Job job) throws Exception {
+    long start = System.currentTimeMillis();
+    boolean success = job.waitForCompletion(true);
+    jobs.add(job);
+    jobMillis.add(System.currentTimeMillis() - start);
+    return success;
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    LocalParallelEngine.configure(this.getConf(), new Path(args[0]));
+    Job job = Job.getInstance(this.getConf(), "Link Graph");
+
+    job.setOutputKeyClass(IntWritable.class);
+    job.setOutputValueClass(LinkListWritable.class);
+
+    job.setMapperClass(LinkGraphMap.class);
+    job.setNumReduceTasks(0);
+
+    FileInputFormat.setInputPaths(job, new Path(args[0]));
+    FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+    job.setJarByClass(LinkGraph.class);
+    return runJob(job) ? 0 : 1;
+  }
+
+  // The mapper tallies the lines it could not parse, the edges it read and
+  // the edges pointing back at their own page here. A malformed line is
+  // skipped whole instead of failing the task.
+  private static final String LINK_COUNTERS = "Link Lines";
+
+  static void countLinks(TaskInputOutputContext<?, ?, ?, ?> context, long malformed, long edges, long selfLinks) {
+    context.getCounter(LINK_COUNTERS, "Malformed lines").increment(malformed);
+    context.getCounter(LINK_COUNTERS, "Edges").increment(edges);
+    context.getCounter(LINK_COUNTERS, "Self links").increment(selfLinks);
+  }
+
+  public static class LinkGraphMap extends TimedMapper<Object, Text, IntWritable, LinkListWritable> {
+    private final LinkLineParser parser = new LinkLineParser();
+    private final IntWritable page = new IntWritable();
+    private final LinkListWritable links = new LinkListWritable();
+    private int[] buffer = new int[16];
+    private long malformed;
+    private long edges;
+    private long selfLinks;
+
+    @Override
+    public void map(Object key, Text line, Context ctxt) throws IOException, InterruptedException {
+      int pageId;
+      try {
+        pageId = parser.parse(line);
+      } catch (NumberFormatException e) {
+        malformed++;
+        return;
+      }
+      page.set(pageId);
+      int n = parser.size();
+      edges += n;
+
+      if (n > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(n, buffer.length * 2));
+      for (int i = 0; i < n; i++) {
+        buffer[i] = parser.link(i);
+        if (buffer[i] == pageId) selfLinks++;
+      }
+
+      links.set(buffer, n);
+      ctxt.write(page, links);
+    }
+
+    @Override
+    protected void cleanup(Context ctxt) {
+      countLinks(ctxt, malformed, edges, selfLinks);
+    }
+  }
+}
+
+// Mapper that times its own setup, map loop and cleanup and adds the
+// nanoseconds to the "<stage> setup/map/cleanup" counters of the
+// PHASE_COUNTERS group, where they show up in the job history next to the
+// built-in counters. The map phase runs from the first record read to the
+// last map() returning, so it includes reading input and collecting output
+// but not the final sort and spill. Nothing is timed per record.
+abstract class TimedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  public static final String PHASE_COUNTERS = "Phase Time (ns)";
+
+  @Override
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long mapStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKeyValue()) {
+        map(context.getCurrentKey(), context.getCurrentValue(), context);
+      }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
+    }
+    long end = System.nanoTime();
+
+    String stage = getClass().getSimpleName();
+    context.getCounter(PHASE_COUNTERS, stage + " setup").increment(mapStart - start);
+    context.getCounter(PHASE_COUNTERS, stage + " map").increment(cleanupStart - mapStart);
+    context.getCounter(PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
+
+// -D engine=local-parallel runs every job of the tool inside this JVM on
+// the local job runner and the local filesystem, without submitting to
+// YARN. Each job gets engine.threads concurrent map and reduce tasks, one
+// per core by default. The input is split into at least one piece per
+// thread, and jobs that don't pin their reducer count get one reducer per
+// thread, so every stage runs in parallel.
+class LocalParallelEngine {
+  private static final long MIN_SPLIT = 1 << 20;
+
+  public static void configure(Configuration conf, Path input) throws IOException {
+    if (!"local-parallel".equals(conf.get("engine"))) return;
+
+    int threads = conf.getInt("engine.threads", Runtime.getRuntime().availableProcessors());
+    conf.set("mapreduce.framework.name", "local");
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+    conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+
+    // an explicit -D mapreduce.job.reduces still wins
+    String[] sources = conf.getPropertySources(MRJobConfig.NUM_REDUCES);
+    if (sources == null || sources[sources.length - 1].endsWith("-default.xml")) {
+      conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+    }
+
+    long size = input.getFileSystem(conf).getContentSummary(input).getLength();
+    conf.setLong(FileInputFormat.SPLIT_MAXSIZE, Math.max(MIN_SPLIT, (size + threads - 1) / threads));
+  }
+
+  // The tools keep their job-to-job data under /mp2 on the cluster
+  // filesystem. Once configure() has switched to the local filesystem that
+  // would be the root of the local disk, so the same layout moves under
+  // hadoop.tmp.dir instead.
+  public static Path scratch(Configuration conf, Path path) {
+    if (!"local-parallel".equals(conf.get("engine"))) return path;
+    return new Path(conf.get("hadoop.tmp.dir"), path.toUri().getPath().substring(1));
+  }
+}
+
+// Scans a "page: l1 l2 ..." link line directly over the Text bytes and
+// hands back page ids as ints, without split(), regexes or a String per
+// link. Ids are separated by any run of whitespace.
+class LinkLineParser {
+  private byte[] bytes;
+  private int pos;
+  private int end;
+  private int[] links = new int[64];
+  private int size;
+
+  // Positions the parser on a new line and returns its page id
+  public int reset(Text line) {
+    this.bytes = line.getBytes();
+    this.end = line.getLength();
+    this.pos = 0;
+
+    int colon = 0;
+    while (colon < end && bytes[colon] != ':') colon++;
+    if (colon == end) throw new NumberFormatException("missing ':' in link line: " + line);
+
+    int pageEnd = this.end;
+    this.end = colon;
+    skipWhitespace();
+    int pageId = parseInt();
+    skipWhitespace();
+    if (pos != colon) throw new NumberFormatException("bad page id in link line: " + line);
+
+    this.pos = colon + 1;
+    this.end = pageEnd;
+    return pageId;
+  }
+
+  // Parses the whole line up front and returns its page id; the targets
+  // are then size() and link(i). A malformed line throws before any of it
+  // is handed out.
+  public int parse(Text line) {
+    int pageId = reset(line);
+    this.size = 0;
+    while (hasNext()) {
+      if (size == links.length) links = Arrays.copyOf(links, size * 2);
+      links[size++] = next();
+    }
+    return pageId;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int link(int i) {
+    return links[i];
+  }
+
+  public boolean hasNext() {
+    skipWhitespace();
+    return pos < end;
+  }
+
+  public int next() {
+    return parseInt();
+  }
+
+  private void skipWhitespace() {
+    while (pos < end && bytes[pos] >= 0 && bytes[pos] <= ' ') pos++;
+  }
+
+  private int parseInt() {
+    boolean negative = pos < end && bytes[pos] == '-';
+    if (negative) pos++;
+
+    int start = pos;
+    long value = 0;
+    while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+      value = value * 10 + (bytes[pos++] - '0');
+      if (value > Integer.MAX_VALUE + 1L) break;
+    }
+
+    if (pos == start || (pos < end && (bytes[pos] < 0 || bytes[pos] > ' ')) || value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+      throw new NumberFormatException("bad id in link line at byte " + start);
+    }
+    return (int) (negative ? -value : value);
+  }
+}
+
+// Out-links of one page in the binary link graph written by LinkGraph.
+// Targets are kept sorted and serialized as a varint count followed by
+// varint deltas, so mappers get ints back without any string parsing.
+class LinkListWritable implements Writable {
+  private int[] links = new int[16];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  public int get(int i) {
+    return links[i];
+  }
+
+  public void set(int[] links, int size) {
+    ensureCapacity(size);
+    System.arraycopy(links, 0, this.links, 0, size);
+    Arrays.sort(this.links, 0, size);
+    this.size = size;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    int prev = 0;
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVInt(out, links[i] - prev);
+      prev = links[i];
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int n = WritableUtils.readVInt(in);
+    ensureCapacity(n);
+    int prev = 0;
+    for (int i = 0; i < n; i++) {
+      prev += WritableUtils.readVInt(in);
+      links[i] = prev;
+    }
+    size = n;
+  }
+
+  private void ensureCapacity(int n) {
+    if (links.length < n) {
+      links = new int[Math.max(n, links.length * 2)];
+    }
+  }
+}
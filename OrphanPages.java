@@ -1,19 +1,62 @@
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.ReduceContext;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 
 // >>> Don't Change
 public class OrphanPages extends Configured implements Tool {
@@ -24,53 +67,841 @@ public class OrphanPages extends Configured implements Tool {
     }
 // <<< Don't Change
 
+    public static final Log LOG = LogFactory.getLog(OrphanPages.class);
+
+    // Jobs this run completed, in order, with their wall times, so that a
+    // caller such as bench/JobBench can read their counters once run() returns
+    private final List<Job> jobs = new ArrayList<Job>();
+    private final List<Long> jobMillis = new ArrayList<Long>();
+
+    public List<Job> getJobs() {
+        return jobs;
+    }
+
+    public List<Long> getJobMillis() {
+        return jobMillis;
+    }
+
+    private boolean runJob(Job job) throws Exception {
+        long start = System.currentTimeMillis();
+        boolean success = job.waitForCompletion(true);
+        jobs.add(job);
+        jobMillis.add(System.currentTimeMillis() - start);
+        return success;
+    }
+
     @Override
     public int run(String[] args) throws Exception {
+        if ("bitmap".equals(this.getConf().get("engine", "mapreduce"))) {
+            return runBitmap(new Path(args[0]), new Path(args[1]));
+        }
+        LocalParallelEngine.configure(this.getConf(), new Path(args[0]));
+
         Job job = Job.getInstance(this.getConf(), "Orphan Pages");
         job.setOutputKeyClass(Integer.class);
 
         job.setMapOutputKeyClass(IntWritable.class);
         job.setMapOutputValueClass(IntWritable.class);
 
-        job.setMapperClass(LinkCountMap.class);
+        if ("binary".equals(this.getConf().get("linkformat", "text"))) {
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            job.setMapperClass(LinkListCountMap.class);
+        } else {
+            job.setMapperClass(LinkCountMap.class);
+        }
         job.setReducerClass(OrphanPageReduce.class);
+        if (!"inmapper".equals(this.getConf().get("combine", "combiner"))) {
+            job.setCombinerClass(OrphanPageCombine.class);
+        }
 
         FileInputFormat.setInputPaths(job, new Path(args[0]));
         FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
+        boolean skew = "skew".equals(this.getConf().get("partition", "hash")) && job.getNumReduceTasks() > 1;
+        if (skew) {
+            Path skewPath = LocalParallelEngine.scratch(this.getConf(), SKEW_PATH);
+            FileSystem.get(this.getConf()).delete(skewPath, true);
+            SkewPartitioner.configure(job, skewPath, sampleLinkTargets(job));
+            job.setReducerClass(SkewOrphanPageReduce.class);
+        }
+
         job.setJarByClass(OrphanPages.class);
-        return job.waitForCompletion(true) ? 0 : 1;
+        if (!runJob(job)) return 1;
+
+        if (skew) {
+            mergeHeavyPages(job, new Path(args[1]));
+        }
+        return 0;
+    }
+
+    // heavy pages found by the -D partition=skew sampling pre-pass
+    private static final Path SKEW_PATH = new Path("/mp2/tmp_skew");
+
+    // Counts the link targets in a sample of the input; hub pages are the
+    // keys that pile up on one reducer
+    private static Map<IntWritable, Integer> sampleLinkTargets(Job job) throws Exception {
+        Configuration conf = job.getConfiguration();
+        Map<IntWritable, Integer> counts = new HashMap<IntWritable, Integer>();
+        LinkLineParser parser = new LinkLineParser();
+
+        for (Writable value : SkewPartitioner.sampleValues(job, conf.getInt("skew.samples", 10000))) {
+            if (value instanceof LinkListWritable) {
+                LinkListWritable links = (LinkListWritable) value;
+                for (int i = 0; i < links.size(); i++) {
+                    countTarget(counts, links.get(i));
+                }
+            } else {
+                parser.reset((Text) value);
+                while (parser.hasNext()) {
+                    countTarget(counts, parser.next());
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static void countTarget(Map<IntWritable, Integer> counts, int target) {
+        IntWritable key = new IntWritable(target);
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    // A heavy page is an orphan only if none of its partial results saw a
+    // link to it; those go into one extra part file.
+    private static void mergeHeavyPages(Job job, Path outputPath) throws IOException {
+        Configuration conf = job.getConfiguration();
+        TreeMap<IntWritable, Integer> linked = SkewPartitioner.mergeHeavyOutput(outputPath, conf, true);
+        if (linked.isEmpty()) return;
+
+        Path part = new Path(outputPath, String.format("part-r-%05d", job.getNumReduceTasks()));
+        Writer out = new OutputStreamWriter(outputPath.getFileSystem(conf).create(part), "UTF-8");
+        try {
+            for (Map.Entry<IntWritable, Integer> entry : linked.entrySet()) {
+                if (entry.getValue() == 0) out.write(entry.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Single pass over the input without MapReduce: every page goes into a
+    // "has page" bitmap and every link target into an "is linked to" one,
+    // and the orphans are the ids set only in the first. Meant for graphs
+    // whose page ids fit in memory, where job setup costs more than the work.
+    // The input is read by the client itself, so it has to sit on the local
+    // file system; anything on HDFS goes through the MapReduce engine.
+    // Malformed lines are skipped and counted like in the link mappers.
+    private int runBitmap(Path inputPath, Path outputPath) throws IOException {
+        Configuration conf = this.getConf();
+        FileSystem inFs = inputPath.getFileSystem(conf);
+        if (!"file".equals(inFs.getUri().getScheme())) {
+            throw new IOException("bitmap engine only reads local input, got " + inFs.makeQualified(inputPath));
+        }
+        FileSystem outFs = outputPath.getFileSystem(conf);
+        if (outFs.exists(outputPath)) {
+            throw new FileAlreadyExistsException("Output directory " + outputPath + " already exists");
+        }
+
+        boolean binary = "binary".equals(conf.get("linkformat", "text"));
+        PageBitmap pages = new PageBitmap();
+        PageBitmap linked = new PageBitmap();
+        long malformed = 0;
+
+        for (FileStatus status : inFs.listStatus(inputPath, VISIBLE_FILES)) {
+            if (status.isDirectory()) continue;
+
+            if (binary) {
+                readLinkLists(status.getPath(), conf, pages, linked);
+            } else {
+                malformed += readLinkLines(status.getPath(), conf, pages, linked);
+            }
+        }
+        if (malformed > 0) LOG.warn("Skipped " + malformed + " malformed lines");
+
+        Writer out = new OutputStreamWriter(outFs.create(new Path(outputPath, "part-r-00000")), "UTF-8");
+        try {
+            for (int id = pages.nextSetBit(0); id >= 0; id = pages.nextSetBit(id + 1)) {
+                if (!linked.get(id)) out.write(id + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        outFs.create(new Path(outputPath, "_SUCCESS")).close();
+        return 0;
+    }
+
+    private static final PathFilter VISIBLE_FILES = new PathFilter() {
+        @Override
+        public boolean accept(Path path) {
+            return !path.getName().startsWith("_") && !path.getName().startsWith(".");
+        }
+    };
+
+    private static long readLinkLines(Path path, Configuration conf, PageBitmap pages, PageBitmap linked) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+        InputStream in = codec == null ? fs.open(path) : codec.createInputStream(fs.open(path));
+        LineReader reader = new LineReader(in, conf);
+
+        LinkLineParser parser = new LinkLineParser();
+        Text line = new Text();
+        long malformed = 0;
+        try {
+            while (reader.readLine(line) > 0) {
+                int pageId;
+                try {
+                    pageId = parser.parse(line);
+                } catch (NumberFormatException e) {
+                    malformed++;
+                    continue;
+                }
+                setBit(pages, pageId);
+                for (int i = 0; i < parser.size(); i++) {
+                    setBit(linked, parser.link(i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return malformed;
+    }
+
+    private static void readLinkLists(Path path, Configuration conf, PageBitmap pages, PageBitmap linked) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+
+        IntWritable pageId = new IntWritable();
+        LinkListWritable links = new LinkListWritable();
+        try {
+            while (reader.next(pageId, links)) {
+                setBit(pages, pageId.get());
+                for (int i = 0; i < links.size(); i++) {
+                    setBit(linked, links.get(i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void setBit(PageBitmap bitmap, int id) throws IOException {
+        if (id < 0) throw new IOException("bitmap engine needs non-negative page ids, got " + id);
+        bitmap.set(id);
     }
 
-    public static class LinkCountMap extends Mapper<Object, Text, IntWritable, IntWritable> {
+    // Link mappers tally the lines they could not parse, the edges they read
+    // and the edges pointing back at their own page here. A malformed line is
+    // skipped whole instead of failing the task.
+    private static final String LINK_COUNTERS = "Link Lines";
+
+    static void countLinks(TaskInputOutputContext<?, ?, ?, ?> context, long malformed, long edges, long selfLinks) {
+      context.getCounter(LINK_COUNTERS, "Malformed lines").increment(malformed);
+      context.getCounter(LINK_COUNTERS, "Edges").increment(edges);
+      context.getCounter(LINK_COUNTERS, "Self links").increment(selfLinks);
+    }
+
+    // Both link mappers report pages through page() and link(). The value
+    // is a single bit: 0 for "page exists", 1 for "is linked to". With
+    // -D combine=inmapper the bits are collected per mapper and written
+    // once per distinct page in cleanup(), so shuffle volume follows the
+    // number of pages rather than the number of edges.
+    public static abstract class PageLinkMap<K, V> extends TimedMapper<K, V, IntWritable, IntWritable> {
+      private final IntWritable id = new IntWritable();
+      private final IntWritable zero = new IntWritable(0);
+      private final IntWritable one = new IntWritable(1);
+
+      private PageBitmap pages;
+      private PageBitmap linked;
+
+      protected long malformed;
+      protected long edges;
+      protected long selfLinks;
+
+      @Override
+      protected void setup(Context context) throws IOException, InterruptedException {
+        if ("inmapper".equals(context.getConfiguration().get("combine", "combiner"))) {
+          pages = new PageBitmap();
+          linked = new PageBitmap();
+        }
+      }
+
+      protected void page(int pageId, Context context) throws IOException, InterruptedException {
+        if (pages != null && pageId >= 0) {
+          pages.set(pageId);
+        } else {
+          id.set(pageId);
+          context.write(id, zero);
+        }
+      }
+
+      protected void link(int linkId, Context context) throws IOException, InterruptedException {
+        if (linked != null && linkId >= 0) {
+          linked.set(linkId);
+        } else {
+          id.set(linkId);
+          context.write(id, one);
+        }
+      }
+
+      @Override
+      protected void cleanup(Context context) throws IOException, InterruptedException {
+        countLinks(context, malformed, edges, selfLinks);
+        if (pages == null) return;
+
+        int p = pages.nextSetBit(0);
+        int l = linked.nextSetBit(0);
+        while (p >= 0 || l >= 0) {
+          int next = (l < 0 || (p >= 0 && p < l)) ? p : l;
+
+          id.set(next);
+          context.write(id, next == l ? one : zero);
+
+          if (next == p) p = pages.nextSetBit(next + 1);
+          if (next == l) l = linked.nextSetBit(next + 1);
+        }
+      }
+    }
+
+    public static class LinkCountMap extends PageLinkMap<Object, Text> {
+      private final LinkLineParser parser = new LinkLineParser();
+
       @Override
       public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-        String[] input = value.toString().split(":");
+        int pageId;
+        try {
+          pageId = parser.parse(value);
+        } catch (NumberFormatException e) {
+          malformed++;
+          return;
+        }
 
-        Integer pageId = Integer.parseInt(input[0].replace(':', ' ').trim());
-        String[] pageLinks = input[1].split(" ");
         // ensure that this page gets added because it may not be linked to
-        context.write(new IntWritable(pageId), new IntWritable(0));
+        page(pageId, context);
 
         // Flip the format upside down so that each *linked to*
         // page has a corresponding page that *links* to it.
-        for (String linkIdStr : pageLinks) {
-          if (linkIdStr.isEmpty()) continue;
-          Integer linkId = Integer.parseInt(linkIdStr.trim());
-          context.write(new IntWritable(linkId), new IntWritable(1));
+        for (int i = 0; i < parser.size(); i++) {
+          if (parser.link(i) == pageId) selfLinks++;
+          link(parser.link(i), context);
+        }
+        edges += parser.size();
+      }
+    }
+
+    // Same records as LinkCountMap, read from the binary graph written by LinkGraph
+    public static class LinkListCountMap extends PageLinkMap<IntWritable, LinkListWritable> {
+      @Override
+      public void map(IntWritable pageId, LinkListWritable links, Context context) throws IOException, InterruptedException {
+        page(pageId.get(), context);
+
+        for (int i = 0; i < links.size(); i++) {
+          if (links.get(i) == pageId.get()) selfLinks++;
+          link(links.get(i), context);
         }
+        edges += links.size();
       }
     }
 
-    public static class OrphanPageReduce extends Reducer<IntWritable, IntWritable, IntWritable, NullWritable> {
+    // ORs the "is linked to" bits of a page so a mapper sends at most one record per page
+    public static class OrphanPageCombine extends TimedReducer<IntWritable, IntWritable, IntWritable, IntWritable> {
+        private final IntWritable zero = new IntWritable(0);
+        private final IntWritable one = new IntWritable(1);
+
         @Override
         public void reduce(IntWritable key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
-          Integer linkBackCount = 0;
           for (IntWritable linkId : values) {
-            linkBackCount += linkId.get();
+            if (linkId.get() != 0) {
+              context.write(key, one);
+              return;
+            }
           }
+          context.write(key, zero);
+        }
+    }
 
-          if (linkBackCount == 0) context.write(key, NullWritable.get());
+    public static class OrphanPageReduce extends TimedReducer<IntWritable, IntWritable, IntWritable, NullWritable> {
+        @Override
+        public void reduce(IntWritable key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+          // a single "is linked to" bit is enough to rule the page out
+          for (IntWritable linkId : values) {
+            if (linkId.get() != 0) return;
+          }
+
+          context.write(key, NullWritable.get());
+        }
+    }
+
+    // OrphanPageReduce for -D partition=skew. A heavy page only sees part
+    // of its records here, so whether any of them was a link goes to the
+    // side output instead.
+    public static class SkewOrphanPageReduce extends TimedReducer<IntWritable, IntWritable, IntWritable, NullWritable> {
+        private Set<Object> heavy;
+        private MultipleOutputs<IntWritable, NullWritable> heavyOut;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+          this.heavy = SkewPartitioner.readHeavyKeys(context.getConfiguration());
+          this.heavyOut = new MultipleOutputs<IntWritable, NullWritable>(context);
         }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+          int linked = 0;
+          for (IntWritable linkId : values) {
+            if (linkId.get() != 0) {
+              linked = 1;
+              break;
+            }
+          }
+
+          if (heavy.contains(key)) {
+            heavyOut.write(SkewPartitioner.HEAVY_OUTPUT, key, new IntWritable(linked));
+          } else if (linked == 0) {
+            context.write(key, NullWritable.get());
+          }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+          heavyOut.close();
+        }
+    }
+}
+
+// Partitioner for -D partition=skew. The driver samples the input before
+// the job and lists the keys that would overload a single reducer in a
+// SequenceFile; records for those keys are dealt round-robin over
+// skew.spread consecutive reducers, and every other key is placed exactly
+// as HashPartitioner would place it. Reducers send their partial results
+// for the heavy keys to the "heavy" side output, which the driver merges
+// once the job is done.
+class SkewPartitioner<K, V> extends Partitioner<K, V> implements Configurable {
+  public static final String HEAVY_OUTPUT = "heavy";
+  private static final String SKEW_FILE = "skew.file";
+
+  private Configuration conf;
+  private Set<Object> heavy;
+  private int spread;
+  private int next;
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.spread = conf.getInt("skew.spread", 4);
+    try {
+      this.heavy = readHeavyKeys(conf);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Can't read heavy keys file", e);
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public int getPartition(K key, V value, int numPartitions) {
+    int partition = (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    if (!heavy.contains(key)) return partition;
+
+    next = (next + 1) % Math.min(spread, numPartitions);
+    return (partition + next) % numPartitions;
+  }
+
+  // Keys holding more than half of one reducer's fair share of the
+  // sample are heavy. They are written to file, and the job is switched
+  // to this partitioner with a SequenceFile side output for their partial
+  // values. Returns the number of heavy keys.
+  public static int configure(Job job, Path file, Map<? extends Writable, Integer> samples) throws IOException {
+    Configuration conf = job.getConfiguration();
+    long total = 0;
+    for (int count : samples.values()) {
+      total += count;
+    }
+
+    int heavy = 0;
+    SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(file),
+        SequenceFile.Writer.keyClass(job.getMapOutputKeyClass()),
+        SequenceFile.Writer.valueClass(NullWritable.class));
+    try {
+      for (Map.Entry<? extends Writable, Integer> entry : samples.entrySet()) {
+        if (2L * job.getNumReduceTasks() * entry.getValue() <= total) continue;
+
+        writer.append(entry.getKey(), NullWritable.get());
+        heavy++;
+      }
+    } finally {
+      writer.close();
+    }
+
+    conf.set(SKEW_FILE, file.toString());
+    job.setPartitionerClass(SkewPartitioner.class);
+    MultipleOutputs.addNamedOutput(job, HEAVY_OUTPUT, SequenceFileOutputFormat.class, job.getMapOutputKeyClass(), IntWritable.class);
+    return heavy;
+  }
+
+  public static Set<Object> readHeavyKeys(Configuration conf) throws IOException {
+    Set<Object> keys = new HashSet<Object>();
+    String file = conf.get(SKEW_FILE);
+    if (file == null) return keys;
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(new Path(file)));
+    try {
+      Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+      while (reader.next(key)) {
+        keys.add(key);
+        key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+      }
+    } finally {
+      reader.close();
+    }
+    return keys;
+  }
+
+  // The first records of every input split, like InputSampler.SplitSampler.
+  // Values are copied since record readers reuse them.
+  @SuppressWarnings("unchecked")
+  public static List<Writable> sampleValues(Job job, int samples) throws Exception {
+    Configuration conf = job.getConfiguration();
+    InputFormat<Writable, Writable> inputFormat = (InputFormat<Writable, Writable>)
+        ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    int perSplit = samples / Math.max(splits.size(), 1) + 1;
+
+    List<Writable> values = new ArrayList<Writable>();
+    for (InputSplit split : splits) {
+      TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+      RecordReader<Writable, Writable> reader = inputFormat.createRecordReader(split, context);
+      try {
+        reader.initialize(split, context);
+        for (int i = 0; i < perSplit && reader.nextKeyValue(); i++) {
+          values.add(WritableUtils.clone(reader.getCurrentValue(), conf));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return values;
+  }
+
+  // Folds the partial values written for the heavy keys back together,
+  // by sum or by bitwise or, and deletes the side files.
+  @SuppressWarnings("unchecked")
+  public static <K extends Writable & Comparable<? super K>> TreeMap<K, Integer> mergeHeavyOutput(Path outputPath, Configuration conf, boolean or) throws IOException {
+    FileSystem fs = outputPath.getFileSystem(conf);
+    TreeMap<K, Integer> merged = new TreeMap<K, Integer>();
+
+    for (FileStatus status : fs.listStatus(outputPath)) {
+      if (!status.getPath().getName().startsWith(HEAVY_OUTPUT + "-")) continue;
+
+      SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+      try {
+        K key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        IntWritable value = new IntWritable();
+        while (reader.next(key, value)) {
+          Integer previous = merged.get(key);
+          int v = value.get();
+          if (previous != null) v = or ? previous | v : previous + v;
+
+          merged.put(key, v);
+          key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        }
+      } finally {
+        reader.close();
+      }
+      fs.delete(status.getPath(), false);
+    }
+    return merged;
+  }
+}
+
+// Mapper that times its own setup, map loop and cleanup and adds the
+// nanoseconds to the "<stage> setup/map/cleanup" counters of the
+// PHASE_COUNTERS group, where they show up in the job history next to the
+// built-in counters. The map phase runs from the first record read to the
+// last map() returning, so it includes reading input and collecting output
+// but not the final sort and spill. Nothing is timed per record.
+abstract class TimedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  public static final String PHASE_COUNTERS = "Phase Time (ns)";
+
+  @Override
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long mapStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKeyValue()) {
+        map(context.getCurrentKey(), context.getCurrentValue(), context);
+      }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
+    }
+    long end = System.nanoTime();
+
+    String stage = getClass().getSimpleName();
+    context.getCounter(PHASE_COUNTERS, stage + " setup").increment(mapStart - start);
+    context.getCounter(PHASE_COUNTERS, stage + " map").increment(cleanupStart - mapStart);
+    context.getCounter(PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
+
+// Reducer counterpart of TimedMapper. The reduce phase covers iterating the
+// merged, sorted input, so it includes the final merge and deserializing
+// the values. Combiners are timed the same way, inside the map task, and
+// count under "<stage> combiner setup/reduce/cleanup" instead.
+abstract class TimedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  @Override
+  @SuppressWarnings("unchecked")
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long reduceStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKey()) {
+        reduce(context.getCurrentKey(), context.getValues(), context);
+        // as in Reducer.run(), a mark()ed value iterator has to be reset per key
+        Iterator<VALUEIN> values = context.getValues().iterator();
+        if (values instanceof ReduceContext.ValueIterator) {
+          ((ReduceContext.ValueIterator<VALUEIN>) values).resetBackupStore();
+        }
+      }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
+    }
+    long end = System.nanoTime();
+
+    String stage = getClass().getSimpleName();
+    // a combiner runs inside the map task; keep its time apart from the reduce side
+    if (context.getTaskAttemptID().getTaskType() == TaskType.MAP) stage += " combiner";
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " setup").increment(reduceStart - start);
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " reduce").increment(cleanupStart - reduceStart);
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
+
+// -D engine=local-parallel runs every job of the tool inside this JVM on
+// the local job runner and the local filesystem, without submitting to
+// YARN. Each job gets engine.threads concurrent map and reduce tasks, one
+// per core by default. The input is split into at least one piece per
+// thread, and jobs that don't pin their reducer count get one reducer per
+// thread, so every stage runs in parallel.
+class LocalParallelEngine {
+  private static final long MIN_SPLIT = 1 << 20;
+
+  public static void configure(Configuration conf, Path input) throws IOException {
+    if (!"local-parallel".equals(conf.get("engine"))) return;
+
+    int threads = conf.getInt("engine.threads", Runtime.getRuntime().availableProcessors());
+    conf.set("mapreduce.framework.name", "local");
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+    conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+
+    // an explicit -D mapreduce.job.reduces still wins
+    String[] sources = conf.getPropertySources(MRJobConfig.NUM_REDUCES);
+    if (sources == null || sources[sources.length - 1].endsWith("-default.xml")) {
+      conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+    }
+
+    long size = input.getFileSystem(conf).getContentSummary(input).getLength();
+    conf.setLong(FileInputFormat.SPLIT_MAXSIZE, Math.max(MIN_SPLIT, (size + threads - 1) / threads));
+  }
+
+  // The tools keep their job-to-job data under /mp2 on the cluster
+  // filesystem. Once configure() has switched to the local filesystem that
+  // would be the root of the local disk, so the same layout moves under
+  // hadoop.tmp.dir instead.
+  public static Path scratch(Configuration conf, Path path) {
+    if (!"local-parallel".equals(conf.get("engine"))) return path;
+    return new Path(conf.get("hadoop.tmp.dir"), path.toUri().getPath().substring(1));
+  }
+}
+
+// Scans a "page: l1 l2 ..." link line directly over the Text bytes and
+// hands back page ids as ints, without split(), regexes or a String per
+// link. Ids are separated by any run of whitespace.
+class LinkLineParser {
+  private byte[] bytes;
+  private int pos;
+  private int end;
+  private int[] links = new int[64];
+  private int size;
+
+  // Positions the parser on a new line and returns its page id
+  public int reset(Text line) {
+    this.bytes = line.getBytes();
+    this.end = line.getLength();
+    this.pos = 0;
+
+    int colon = 0;
+    while (colon < end && bytes[colon] != ':') colon++;
+    if (colon == end) throw new NumberFormatException("missing ':' in link line: " + line);
+
+    int pageEnd = this.end;
+    this.end = colon;
+    skipWhitespace();
+    int pageId = parseInt();
+    skipWhitespace();
+    if (pos != colon) throw new NumberFormatException("bad page id in link line: " + line);
+
+    this.pos = colon + 1;
+    this.end = pageEnd;
+    return pageId;
+  }
+
+  // Parses the whole line up front and returns its page id; the targets
+  // are then size() and link(i). A malformed line throws before any of it
+  // is handed out.
+  public int parse(Text line) {
+    int pageId = reset(line);
+    this.size = 0;
+    while (hasNext()) {
+      if (size == links.length) links = Arrays.copyOf(links, size * 2);
+      links[size++] = next();
+    }
+    return pageId;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int link(int i) {
+    return links[i];
+  }
+
+  public boolean hasNext() {
+    skipWhitespace();
+    return pos < end;
+  }
+
+  public int next() {
+    return parseInt();
+  }
+
+  private void skipWhitespace() {
+    while (pos < end && bytes[pos] >= 0 && bytes[pos] <= ' ') pos++;
+  }
+
+  private int parseInt() {
+    boolean negative = pos < end && bytes[pos] == '-';
+    if (negative) pos++;
+
+    int start = pos;
+    long value = 0;
+    while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+      value = value * 10 + (bytes[pos++] - '0');
+      if (value > Integer.MAX_VALUE + 1L) break;
+    }
+
+    if (pos == start || (pos < end && (bytes[pos] < 0 || bytes[pos] > ' ')) || value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+      throw new NumberFormatException("bad id in link line at byte " + start);
+    }
+    return (int) (negative ? -value : value);
+  }
+}
+
+// Out-links of one page in the binary link graph written by LinkGraph.
+// Targets are kept sorted and serialized as a varint count followed by
+// varint deltas, so mappers get ints back without any string parsing.
+class LinkListWritable implements Writable {
+  private int[] links = new int[16];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  public int get(int i) {
+    return links[i];
+  }
+
+  public void set(int[] links, int size) {
+    ensureCapacity(size);
+    System.arraycopy(links, 0, this.links, 0, size);
+    Arrays.sort(this.links, 0, size);
+    this.size = size;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    int prev = 0;
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVInt(out, links[i] - prev);
+      prev = links[i];
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int n = WritableUtils.readVInt(in);
+    ensureCapacity(n);
+    int prev = 0;
+    for (int i = 0; i < n; i++) {
+      prev += WritableUtils.readVInt(in);
+      links[i] = prev;
+    }
+    size = n;
+  }
+
+  private void ensureCapacity(int n) {
+    if (links.length < n) {
+      links = new int[Math.max(n, links.length * 2)];
+    }
+  }
+}
+
+// Growable bitmap over non-negative page ids. Bits live in 64K-bit chunks
+// that are only allocated once an id inside them is set, so sparse id
+// ranges cost nothing.
+class PageBitmap {
+  private static final int CHUNK_SHIFT = 16;
+  private static final int WORDS_PER_CHUNK = 1 << (CHUNK_SHIFT - 6);
+
+  private long[][] chunks = new long[16][];
+
+  public void set(int id) {
+    int chunk = id >>> CHUNK_SHIFT;
+    if (chunk >= chunks.length) {
+      chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+    }
+    if (chunks[chunk] == null) {
+      chunks[chunk] = new long[WORDS_PER_CHUNK];
+    }
+    chunks[chunk][(id >>> 6) & (WORDS_PER_CHUNK - 1)] |= 1L << id;
+  }
+
+  public boolean get(int id) {
+    int chunk = id >>> CHUNK_SHIFT;
+    if (chunk >= chunks.length || chunks[chunk] == null) return false;
+    return (chunks[chunk][(id >>> 6) & (WORDS_PER_CHUNK - 1)] & (1L << id)) != 0;
+  }
+
+  // Smallest set id >= from, or -1 when there is none
+  public int nextSetBit(int from) {
+    if (from < 0) return -1;
+
+    for (int chunk = from >>> CHUNK_SHIFT; chunk < chunks.length; chunk++) {
+      long[] words = chunks[chunk];
+      if (words == null) continue;
+
+      int base = chunk << CHUNK_SHIFT;
+      int word = (chunk == from >>> CHUNK_SHIFT) ? (from >>> 6) & (WORDS_PER_CHUNK - 1) : 0;
+      long bits = words[word];
+      if (chunk == from >>> CHUNK_SHIFT) bits &= -1L << from;
+
+      while (true) {
+        if (bits != 0) return base + (word << 6) + Long.numberOfTrailingZeros(bits);
+        if (++word == WORDS_PER_CHUNK) break;
+        bits = words[word];
+      }
     }
+    return -1;
+  }
 }
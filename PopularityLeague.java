@@ -6,20 +6,44 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.LocalJobRunner;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.ReduceContext;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.KeyValueTextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
 
 public class PopularityLeague extends Configured implements Tool {
@@ -45,56 +69,63 @@ public class PopularityLeague extends Configured implements Tool {
     }
   }
 
+  // Jobs this run completed, in order, with their wall times, so that a
+  // caller such as bench/JobBench can read their counters once run() returns
+  private final List<Job> jobs = new ArrayList<Job>();
+  private final List<Long> jobMillis = new ArrayList<Long>();
+
+  public List<Job> getJobs() {
+    return jobs;
+  }
+
+  public List<Long> getJobMillis() {
+    return jobMillis;
+  }
+
+  private boolean runJob(Job job) throws Exception {
+    long start = System.currentTimeMillis();
+    boolean success = job.waitForCompletion(true);
+    jobs.add(job);
+    jobMillis.add(System.currentTimeMillis() - start);
+    return success;
+  }
+
   @Override
   public int run(String[] args) throws Exception {
     Configuration conf = this.getConf();
+    LocalParallelEngine.configure(conf, new Path(args[0]));
     FileSystem fs = FileSystem.get(conf);
-    Path linkCountsTmpPath = new Path("/mp2/tmp/linkCounts");
-    Path ranksTmpPath = new Path("/mp2/tmp/linkRanks");
+    Path linkCountsTmpPath = LocalParallelEngine.scratch(conf, new Path("/mp2/tmp/linkCounts"));
     Path inputPaths = new Path(args[0]);
     Path resultPath = new Path(args[1]);
 
     // clean all directories
     fs.delete(linkCountsTmpPath, true);
-    fs.delete(ranksTmpPath, true);
     fs.delete(resultPath, true);
 
     // Link Count Job Configuration
+    // the mappers only count links to league pages, so the counts are
+    // already small enough to rank in the league job directly
     Job linkJob = Job.getInstance(conf, "Popularity League");
 
     linkJob.setOutputKeyClass(IntWritable.class);
     linkJob.setOutputValueClass(IntWritable.class);
 
-    linkJob.setMapperClass(LinkCountMap.class);
+    if ("binary".equals(conf.get("linkformat", "text"))) {
+      linkJob.setInputFormatClass(SequenceFileInputFormat.class);
+      linkJob.setMapperClass(LinkListCountMap.class);
+    } else {
+      linkJob.setMapperClass(LinkCountMap.class);
+    }
     linkJob.setReducerClass(LinkCountReduce.class);
 
     FileInputFormat.setInputPaths(linkJob, inputPaths);
     FileOutputFormat.setOutputPath(linkJob, linkCountsTmpPath);
+    SideFiles.addCacheFiles(linkJob, "league");
+    setIntermediateOutput(linkJob);
 
     linkJob.setJarByClass(PopularityLeague.class);
-    linkJob.waitForCompletion(true);
-
-    // Link Ranking Job Configuration
-    Job rankJob = Job.getInstance(conf, "Popularity League");
-
-    rankJob.setOutputKeyClass(IntWritable.class);
-    rankJob.setOutputValueClass(IntWritable.class);
-
-    rankJob.setMapOutputKeyClass(NullWritable.class);
-    rankJob.setMapOutputValueClass(IntArrayWritable.class);
-
-    rankJob.setMapperClass(TopLinksMap.class);
-    rankJob.setReducerClass(TopLinksReduce.class);
-    rankJob.setNumReduceTasks(1);
-
-    FileInputFormat.setInputPaths(rankJob, linkCountsTmpPath);
-    FileOutputFormat.setOutputPath(rankJob, ranksTmpPath);
-
-    rankJob.setInputFormatClass(KeyValueTextInputFormat.class);
-    rankJob.setOutputFormatClass(TextOutputFormat.class);
-
-    rankJob.setJarByClass(PopularityLeague.class);
-    rankJob.waitForCompletion(true);
+    runJob(linkJob);
 
     // League Job Configuration
     Job leagueJob = Job.getInstance(conf, "Popularity League");
@@ -103,20 +134,46 @@ public class PopularityLeague extends Configured implements Tool {
     leagueJob.setOutputValueClass(IntWritable.class);
 
     leagueJob.setMapOutputKeyClass(NullWritable.class);
-    leagueJob.setMapOutputValueClass(IntArrayWritable.class);
+    leagueJob.setMapOutputValueClass(IntIntPairWritable.class);
 
     leagueJob.setMapperClass(LeagueRankMap.class);
     leagueJob.setReducerClass(LeagueRankReduce.class);
     leagueJob.setNumReduceTasks(1);
 
-    FileInputFormat.setInputPaths(leagueJob, ranksTmpPath);
+    FileInputFormat.setInputPaths(leagueJob, linkCountsTmpPath);
     FileOutputFormat.setOutputPath(leagueJob, resultPath);
+    SideFiles.addCacheFiles(leagueJob, "league");
 
-    leagueJob.setInputFormatClass(KeyValueTextInputFormat.class);
+    setIntermediateInput(leagueJob);
     leagueJob.setOutputFormatClass(TextOutputFormat.class);
 
     leagueJob.setJarByClass(PopularityLeague.class);
-    return leagueJob.waitForCompletion(true) ? 0 : 1;
+    return runJob(leagueJob) ? 0 : 1;
+  }
+
+  // With -D intermediate=sequence, job-to-job output is written as block
+  // compressed SequenceFiles and read back as Writables instead of text.
+  public static void setIntermediateOutput(Job job) {
+    if (!"sequence".equals(job.getConfiguration().get("intermediate", "text"))) return;
+
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+  }
+
+  public static void setIntermediateInput(Job job) {
+    if ("sequence".equals(job.getConfiguration().get("intermediate", "text"))) {
+      job.setInputFormatClass(SequenceFileInputFormat.class);
+    } else {
+      job.setInputFormatClass(KeyValueTextInputFormat.class);
+    }
+  }
+
+  // Counts and page ids arrive as Text from KeyValueTextInputFormat or as
+  // IntWritable from a SequenceFile intermediate.
+  public static int intValue(Writable value) {
+    if (value instanceof IntWritable) return ((IntWritable) value).get();
+    return Integer.parseInt(value.toString());
   }
 
   public static String readHDFSFile(String path, Configuration conf) throws IOException{
@@ -127,37 +184,119 @@ public class PopularityLeague extends Configured implements Tool {
 
     StringBuilder everything = new StringBuilder();
     String line;
-    while( (line = buffIn.readLine()) != null) {
-      everything.append(line);
-      everything.append("\n");
+    try {
+      while( (line = buffIn.readLine()) != null) {
+        everything.append(line);
+        everything.append("\n");
+      }
+    } finally {
+      buffIn.close();
     }
 
     return everything.toString();
   }
 
-  public static class LinkCountMap extends Mapper<Object, Text, IntWritable, IntWritable> {
+  // The league, parsed once per job in each JVM
+  public static IntIdSet readLeague(JobContext ctxt) throws IOException {
+    IntIdSet leagues = (IntIdSet) SideFiles.cached(ctxt, "league");
+    if (leagues == null) {
+      leagues = IntIdSet.parse(SideFiles.read(ctxt, "league"));
+      SideFiles.cache(ctxt, "league", leagues);
+    }
+    return leagues;
+  }
+
+  // Link mappers tally the lines they could not parse, the edges they read
+  // and the edges pointing back at their own page here. A malformed line is
+  // skipped whole instead of failing the task.
+  private static final String LINK_COUNTERS = "Link Lines";
+
+  static void countLinks(TaskInputOutputContext<?, ?, ?, ?> context, long malformed, long edges, long selfLinks) {
+    context.getCounter(LINK_COUNTERS, "Malformed lines").increment(malformed);
+    context.getCounter(LINK_COUNTERS, "Edges").increment(edges);
+    context.getCounter(LINK_COUNTERS, "Self links").increment(selfLinks);
+  }
+
+  public static class LinkCountMap extends TimedMapper<Object, Text, IntWritable, IntWritable> {
+    private final LinkLineParser parser = new LinkLineParser();
+    private final IntWritable linkId = new IntWritable();
+    private final IntWritable one = new IntWritable(1);
+    private IntIdSet leagues;
+    private long malformed;
+    private long edges;
+    private long selfLinks;
+
     @Override
-    public void map(Object key, Text line, Context ctxt) throws IOException, InterruptedException {
-      String[] input = line.toString().split(":");
+    protected void setup(Context ctxt) throws IOException, InterruptedException {
+      leagues = readLeague(ctxt);
+    }
 
-      Integer pageId = Integer.parseInt(input[0].replace(':', ' ').trim());
-      String[] pageLinks = input[1].split(" ");
+    @Override
+    public void map(Object key, Text line, Context ctxt) throws IOException, InterruptedException {
+      int pageId;
+      try {
+        pageId = parser.parse(line);
+      } catch (NumberFormatException e) {
+        malformed++;
+        return;
+      }
+      edges += parser.size();
 
       // Flip the format upside down so that each *linked to*
       // page has a corresponding page that *links* to it.
 
       // This method completely excludes orphaned links but since
       // this is a popularity contest we don't care, and even better,
-      // it makes the reducer dataset smaller
-      for (String linkIdStr : pageLinks) {
-        if (linkIdStr.trim().isEmpty()) continue;
-        Integer linkId = Integer.parseInt(linkIdStr.trim());
-        ctxt.write(new IntWritable(linkId), new IntWritable(1));
+      // it makes the reducer dataset smaller. Links to pages outside
+      // the league are dropped here for the same reason.
+      for (int i = 0; i < parser.size(); i++) {
+        int id = parser.link(i);
+        if (id == pageId) selfLinks++;
+        if (!leagues.contains(id)) continue;
+
+        linkId.set(id);
+        ctxt.write(linkId, one);
+      }
+    }
+
+    @Override
+    protected void cleanup(Context ctxt) {
+      countLinks(ctxt, malformed, edges, selfLinks);
+    }
+  }
+
+  // Same records as LinkCountMap, read from the binary graph written by LinkGraph
+  public static class LinkListCountMap extends TimedMapper<IntWritable, LinkListWritable, IntWritable, IntWritable> {
+    private final IntWritable linkId = new IntWritable();
+    private final IntWritable one = new IntWritable(1);
+    private IntIdSet leagues;
+    private long edges;
+    private long selfLinks;
+
+    @Override
+    protected void setup(Context ctxt) throws IOException, InterruptedException {
+      leagues = readLeague(ctxt);
+    }
+
+    @Override
+    public void map(IntWritable pageId, LinkListWritable links, Context ctxt) throws IOException, InterruptedException {
+      edges += links.size();
+      for (int i = 0; i < links.size(); i++) {
+        if (links.get(i) == pageId.get()) selfLinks++;
+        if (!leagues.contains(links.get(i))) continue;
+
+        linkId.set(links.get(i));
+        ctxt.write(linkId, one);
       }
     }
+
+    @Override
+    protected void cleanup(Context ctxt) {
+      countLinks(ctxt, 0, edges, selfLinks);
+    }
   }
 
-  public static class LinkCountReduce extends Reducer<IntWritable, IntWritable, IntWritable, IntWritable> {
+  public static class LinkCountReduce extends TimedReducer<IntWritable, IntWritable, IntWritable, IntWritable> {
     // we simply need to aggregate the number of counts
     // this is more of a map than a reduce.. the mapper already reduced
     // by excluding orphaned pages
@@ -173,133 +312,577 @@ public class PopularityLeague extends Configured implements Tool {
     }
   }
 
-  public static class TopLinksMap extends Mapper<Text, Text, NullWritable, IntArrayWritable> {
+  public static class LeagueRankMap extends TimedMapper<Writable, Writable, NullWritable, IntIntPairWritable> {
+    IntIdSet leagues;
     private TreeSet<Pair<Integer, Integer>> rankMap = new TreeSet<Pair<Integer, Integer>>();
 
     @Override
-    public void map(Text key, Text value, Context ctxt) throws IOException, InterruptedException {
-      Integer count = Integer.parseInt(value.toString());
-      Integer pageId = Integer.parseInt(key.toString());
+    protected void setup(Context ctxt) throws IOException, InterruptedException {
+      // i. build leagues list
+      leagues = readLeague(ctxt);
+    }
 
-      // treeset will sort on Key (pair[0]) so count *then* pageId
-      rankMap.add(new Pair<Integer, Integer>(count, pageId));
+    @Override
+    public void map(Writable key, Writable value, Context ctxt) throws IOException, InterruptedException {
+      // ii. build page link-back ranks from previous reduce, key: pageId, value: linkback count
+      //     filtering out everything except league values
+      Integer pageId = intValue(key);
+      Integer count = intValue(value);
+
+      if (leagues.contains(pageId))
+        rankMap.add(new Pair<Integer, Integer>(count, pageId));
     }
 
     @Override
     protected void cleanup(Context ctxt) throws IOException, InterruptedException {
-      for (Pair<Integer, Integer> itm : rankMap) {
-        Integer[] entry = { itm.first, itm.second };
-        IntArrayWritable entryArr = new IntArrayWritable(entry);
-        ctxt.write(NullWritable.get(), entryArr);
+      IntIntPairWritable entry = new IntIntPairWritable();
+      for (Pair<Integer, Integer> rank : rankMap) {
+        entry.set(rank.first, rank.second);
+        ctxt.write(NullWritable.get(), entry);
       }
     }
   }
 
-  public static class TopLinksReduce extends Reducer<NullWritable, IntArrayWritable, IntWritable, IntWritable> {
-    private TreeSet<Pair<Integer, Integer>> rankMap = new TreeSet<Pair<Integer, Integer>>();
+  public static class LeagueRankReduce extends TimedReducer<NullWritable, IntIntPairWritable, IntWritable, IntWritable> {
+    // (count, pageId) packed so that sorting the longs sorts like Pair<Integer, Integer>
+    private long[] rankMap = new long[64];
+    private int size;
 
     @Override
-    public void reduce(NullWritable key, Iterable<IntArrayWritable> values, Context ctxt) throws IOException, InterruptedException {
-      for (IntArrayWritable val : values) {
-        IntWritable[] rankEntry = (IntWritable[]) val.toArray();
+    public void reduce(NullWritable key, Iterable<IntIntPairWritable> values, Context ctxt) throws IOException, InterruptedException {
+      // iv. get our full list for processing
+      for (IntIntPairWritable val : values) {
+        if (size == rankMap.length) rankMap = Arrays.copyOf(rankMap, size * 2);
+        rankMap[size++] = pack(val.first(), val.second());
+      }
 
-        Integer linkBackCount = rankEntry[0].get();
-        Integer pageId = rankEntry[1].get();
+      // v. do the rank calculation over the entries sorted by {count, pageId}
+      Arrays.sort(rankMap, 0, size);
+      int[] ranks = new int[size];
+      rankSorted(rankMap, size, ranks);
 
-        // now that we have a shorter list we want to sort by pageId
-        rankMap.add(new Pair<Integer, Integer>(linkBackCount, pageId));
+      for (int i = 0; i < size; i++) {
+        ctxt.write(new IntWritable(pageId(rankMap[i])), new IntWritable(ranks[i]));
       }
+    }
 
-      for (Pair<Integer, Integer> rankEntry : rankMap.descendingSet()) {
-        IntWritable count = new IntWritable(rankEntry.first);
-        IntWritable pageId = new IntWritable(rankEntry.second);
-        ctxt.write(pageId, count);
+    // A page's rank is the number of pages with a strictly smaller count. In
+    // ascending order that is the index of the first entry sharing its
+    // count, so one sweep ranks every entry and ties get the same rank.
+    static void rankSorted(long[] sorted, int n, int[] ranks) {
+      for (int i = 0; i < n; i++) {
+        boolean tie = i > 0 && count(sorted[i]) == count(sorted[i - 1]);
+        ranks[i] = tie ? ranks[i - 1] : i;
       }
     }
+
+    static long pack(int count, int pageId) {
+      return ((long) count << 32) | ((pageId ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    static int count(long entry) {
+      return (int) (entry >> 32);
+    }
+
+    static int pageId(long entry) {
+      return (int) entry ^ Integer.MIN_VALUE;
+    }
   }
+}
 
-  public static class LeagueRankMap extends Mapper<Text, Text, NullWritable, IntArrayWritable> {
-    ArrayList<Integer> leagues = new ArrayList<Integer>();
-    private TreeSet<Pair<Integer, Integer>> rankMap = new TreeSet<Pair<Integer, Integer>>();
+// Mapper that times its own setup, map loop and cleanup and adds the
+// nanoseconds to the "<stage> setup/map/cleanup" counters of the
+// PHASE_COUNTERS group, where they show up in the job history next to the
+// built-in counters. The map phase runs from the first record read to the
+// last map() returning, so it includes reading input and collecting output
+// but not the final sort and spill. Nothing is timed per record.
+abstract class TimedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  public static final String PHASE_COUNTERS = "Phase Time (ns)";
 
-    @Override
-    protected void setup(Context ctxt) throws IOException, InterruptedException {
-      // i. build leagues list
-      Configuration conf = ctxt.getConfiguration();
+  @Override
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long mapStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKeyValue()) {
+        map(context.getCurrentKey(), context.getCurrentValue(), context);
+      }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
+    }
+    long end = System.nanoTime();
 
-      String leaguePath = conf.get("league");
-      String[] leagueStrings = readHDFSFile(leaguePath, conf).split("\n");
+    String stage = getClass().getSimpleName();
+    context.getCounter(PHASE_COUNTERS, stage + " setup").increment(mapStart - start);
+    context.getCounter(PHASE_COUNTERS, stage + " map").increment(cleanupStart - mapStart);
+    context.getCounter(PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
 
-      for (String leagueId : leagueStrings) {
-        if (leagueId.trim().isEmpty()) continue;
-        leagues.add(Integer.parseInt(leagueId.trim()));
+// Reducer counterpart of TimedMapper. The reduce phase covers iterating the
+// merged, sorted input, so it includes the final merge and deserializing
+// the values. Combiners are timed the same way, inside the map task, and
+// count under "<stage> combiner setup/reduce/cleanup" instead.
+abstract class TimedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  @Override
+  @SuppressWarnings("unchecked")
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long reduceStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKey()) {
+        reduce(context.getCurrentKey(), context.getValues(), context);
+        // as in Reducer.run(), a mark()ed value iterator has to be reset per key
+        Iterator<VALUEIN> values = context.getValues().iterator();
+        if (values instanceof ReduceContext.ValueIterator) {
+          ((ReduceContext.ValueIterator<VALUEIN>) values).resetBackupStore();
+        }
       }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
     }
+    long end = System.nanoTime();
+
+    String stage = getClass().getSimpleName();
+    // a combiner runs inside the map task; keep its time apart from the reduce side
+    if (context.getTaskAttemptID().getTaskType() == TaskType.MAP) stage += " combiner";
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " setup").increment(reduceStart - start);
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " reduce").increment(cleanupStart - reduceStart);
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
 
-    @Override
-    public void map(Text key, Text value, Context ctxt) throws IOException, InterruptedException {
-      // ii. build page link-back ranks from previous reduce, key: pageId, value: linkback count
-      //     filtering out everything except league values
-      Integer pageId = Integer.parseInt(key.toString());
-      Integer count = Integer.parseInt(value.toString());
+// -D engine=local-parallel runs every job of the tool inside this JVM on
+// the local job runner and the local filesystem, without submitting to
+// YARN. Each job gets engine.threads concurrent map and reduce tasks, one
+// per core by default. The input is split into at least one piece per
+// thread, and jobs that don't pin their reducer count get one reducer per
+// thread, so every stage runs in parallel.
+class LocalParallelEngine {
+  private static final long MIN_SPLIT = 1 << 20;
+
+  public static void configure(Configuration conf, Path input) throws IOException {
+    if (!"local-parallel".equals(conf.get("engine"))) return;
+
+    int threads = conf.getInt("engine.threads", Runtime.getRuntime().availableProcessors());
+    conf.set("mapreduce.framework.name", "local");
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+    conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+
+    // an explicit -D mapreduce.job.reduces still wins
+    String[] sources = conf.getPropertySources(MRJobConfig.NUM_REDUCES);
+    if (sources == null || sources[sources.length - 1].endsWith("-default.xml")) {
+      conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+    }
 
-      if (leagues.contains(pageId))
-        rankMap.add(new Pair<Integer, Integer>(count, pageId));
+    long size = input.getFileSystem(conf).getContentSummary(input).getLength();
+    conf.setLong(FileInputFormat.SPLIT_MAXSIZE, Math.max(MIN_SPLIT, (size + threads - 1) / threads));
+  }
+
+  // The tools keep their job-to-job data under /mp2 on the cluster
+  // filesystem. Once configure() has switched to the local filesystem that
+  // would be the root of the local disk, so the same layout moves under
+  // hadoop.tmp.dir instead.
+  public static Path scratch(Configuration conf, Path path) {
+    if (!"local-parallel".equals(conf.get("engine"))) return path;
+    return new Path(conf.get("hadoop.tmp.dir"), path.toUri().getPath().substring(1));
+  }
+}
+
+// Scans a "page: l1 l2 ..." link line directly over the Text bytes and
+// hands back page ids as ints, without split(), regexes or a String per
+// link. Ids are separated by any run of whitespace.
+class LinkLineParser {
+  private byte[] bytes;
+  private int pos;
+  private int end;
+  private int[] links = new int[64];
+  private int size;
+
+  // Positions the parser on a new line and returns its page id
+  public int reset(Text line) {
+    this.bytes = line.getBytes();
+    this.end = line.getLength();
+    this.pos = 0;
+
+    int colon = 0;
+    while (colon < end && bytes[colon] != ':') colon++;
+    if (colon == end) throw new NumberFormatException("missing ':' in link line: " + line);
+
+    int pageEnd = this.end;
+    this.end = colon;
+    skipWhitespace();
+    int pageId = parseInt();
+    skipWhitespace();
+    if (pos != colon) throw new NumberFormatException("bad page id in link line: " + line);
+
+    this.pos = colon + 1;
+    this.end = pageEnd;
+    return pageId;
+  }
+
+  // Parses the whole line up front and returns its page id; the targets
+  // are then size() and link(i). A malformed line throws before any of it
+  // is handed out.
+  public int parse(Text line) {
+    int pageId = reset(line);
+    this.size = 0;
+    while (hasNext()) {
+      if (size == links.length) links = Arrays.copyOf(links, size * 2);
+      links[size++] = next();
     }
+    return pageId;
+  }
 
-    @Override
-    protected void cleanup(Context ctxt) throws IOException, InterruptedException {
-      for (Pair<Integer, Integer> rank : rankMap) {
-        Integer[] entry = { rank.first, rank.second };
-        IntArrayWritable entryArr = new IntArrayWritable(entry);
-        ctxt.write(NullWritable.get(), entryArr);
-      }
+  public int size() {
+    return size;
+  }
+
+  public int link(int i) {
+    return links[i];
+  }
+
+  public boolean hasNext() {
+    skipWhitespace();
+    return pos < end;
+  }
+
+  public int next() {
+    return parseInt();
+  }
+
+  private void skipWhitespace() {
+    while (pos < end && bytes[pos] >= 0 && bytes[pos] <= ' ') pos++;
+  }
+
+  private int parseInt() {
+    boolean negative = pos < end && bytes[pos] == '-';
+    if (negative) pos++;
+
+    int start = pos;
+    long value = 0;
+    while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+      value = value * 10 + (bytes[pos++] - '0');
+      if (value > Integer.MAX_VALUE + 1L) break;
+    }
+
+    if (pos == start || (pos < end && (bytes[pos] < 0 || bytes[pos] > ' ')) || value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+      throw new NumberFormatException("bad id in link line at byte " + start);
     }
+    return (int) (negative ? -value : value);
   }
+}
 
-  public static class LeagueRankReduce extends Reducer<NullWritable, IntArrayWritable, IntWritable, IntWritable> {
-    private TreeSet<Pair<Integer, Integer>> rankMap = new TreeSet<Pair<Integer, Integer>>();
+// Out-links of one page in the binary link graph written by LinkGraph.
+// Targets are kept sorted and serialized as a varint count followed by
+// varint deltas, so mappers get ints back without any string parsing.
+class LinkListWritable implements Writable {
+  private int[] links = new int[16];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  public int get(int i) {
+    return links[i];
+  }
+
+  public void set(int[] links, int size) {
+    ensureCapacity(size);
+    System.arraycopy(links, 0, this.links, 0, size);
+    Arrays.sort(this.links, 0, size);
+    this.size = size;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    int prev = 0;
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVInt(out, links[i] - prev);
+      prev = links[i];
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int n = WritableUtils.readVInt(in);
+    ensureCapacity(n);
+    int prev = 0;
+    for (int i = 0; i < n; i++) {
+      prev += WritableUtils.readVInt(in);
+      links[i] = prev;
+    }
+    size = n;
+  }
+
+  private void ensureCapacity(int n) {
+    if (links.length < n) {
+      links = new int[Math.max(n, links.length * 2)];
+    }
+  }
+}
+
+// (int, int) record for the top-N funnels, such as (count, pageId). It is
+// two fixed-width ints with no array header or per-element class names,
+// and set() lets one instance be reused for every record. The registered
+// comparator orders the serialized bytes like Pair<Integer, Integer>.
+class IntIntPairWritable implements WritableComparable<IntIntPairWritable> {
+  private int first;
+  private int second;
+
+  static {
+    WritableComparator.define(IntIntPairWritable.class, new Comparator());
+  }
+
+  public IntIntPairWritable() {
+  }
+
+  public IntIntPairWritable(int first, int second) {
+    set(first, second);
+  }
+
+  public void set(int first, int second) {
+    this.first = first;
+    this.second = second;
+  }
+
+  public int first() {
+    return first;
+  }
+
+  public int second() {
+    return second;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(first);
+    out.writeInt(second);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    first = in.readInt();
+    second = in.readInt();
+  }
+
+  @Override
+  public int compareTo(IntIntPairWritable o) {
+    int cmp = Integer.compare(first, o.first);
+    return cmp != 0 ? cmp : Integer.compare(second, o.second);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof IntIntPairWritable)) return false;
+    IntIntPairWritable other = (IntIntPairWritable) o;
+    return first == other.first && second == other.second;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * first + second;
+  }
+
+  @Override
+  public String toString() {
+    return first + "\t" + second;
+  }
+
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(IntIntPairWritable.class);
+    }
 
     @Override
-    public void reduce(NullWritable key, Iterable<IntArrayWritable> values, Context ctxt) throws IOException, InterruptedException {
-      // iv. get our full list for processing
-      for (IntArrayWritable val : values) {
-        IntWritable[] rankEntry = (IntWritable[]) val.toArray();
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+      return cmp != 0 ? cmp : Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+    }
+  }
+}
+
+// Loads the small side files that every mapper needs: stopwords,
+// delimiters and league. The driver ships them through the distributed
+// cache, and each task memory-maps its localized copy instead of opening
+// the file on HDFS. Without a cached copy, the configured path is read
+// directly. Parsed results can be kept for the rest of the job with
+// cache(), so tasks that share a JVM (local runner, uber jobs) parse them
+// only once.
+class SideFiles {
+  private static String cachedJob;
+  private static final Map<String, Object> parsed = new HashMap<String, Object>();
+
+  // Ships the file configured under each key, linked as "side-<key>"
+  public static void addCacheFiles(Job job, String... keys) throws IOException {
+    Configuration conf = job.getConfiguration();
+    for (String key : keys) {
+      String value = conf.get(key);
+      if (value == null) continue;
+
+      Path path = new Path(value);
+      URI uri = path.getFileSystem(conf).makeQualified(path).toUri();
+      try {
+        job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, linkName(key)));
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+  }
 
-        Integer pageId = rankEntry[1].get();
-        Integer linkBackCount = rankEntry[0].get();
+  // The lines of the file configured under key, each followed by "\n",
+  // exactly as readHDFSFile returns them
+  public static String read(JobContext context, String key) throws IOException {
+    Configuration conf = context.getConfiguration();
+    File local = new File(linkName(key));
+    Reader reader;
+    if (isCached(context, key) && local.isFile()) {
+      reader = new StringReader(map(local));
+    } else {
+      Path path = new Path(conf.get(key));
+      reader = new InputStreamReader(path.getFileSystem(conf).open(path));
+    }
 
-        rankMap.add(new Pair<Integer, Integer>(linkBackCount, pageId));
+    BufferedReader in = new BufferedReader(reader);
+    try {
+      StringBuilder everything = new StringBuilder();
+      String line;
+      while ((line = in.readLine()) != null) {
+        everything.append(line);
+        everything.append("\n");
       }
+      return everything.toString();
+    } finally {
+      in.close();
+    }
+  }
 
-      // v. do the rank calculation & sort via rankMap where pair = {count, pageId}
-      // note that rankMap.descendingSet() will return ranks from highest link count
-      // to lowest link count
-      TreeSet<Pair<Integer, Integer>> pageRankMap = new TreeSet<Pair<Integer, Integer>>();
-      for (Pair<Integer, Integer> entry : rankMap) {
-        // if we take the subset of a sorted set in desc. order from this
-        // element to the bottom, the size of such set represents how many
-        // elements we have that are lower than this one.
-        // When we are at the bottom we will be getting the subset from
-        // this to this so it will be zero
-
-        // TODO this doesn't account for two entries with the same count
-        // but otherwise.. it's a nice solution
-        // Integer rank = rankMap.size() - rankMap.subSet(entry, rankMap.last()).size() - 1;
-
-        Integer pageId = entry.second;
-        Integer rank = 0;
-
-        // we only need to check on this element and down since the list is already
-        // sorted by count descending
-        for (Pair<Integer, Integer> itrEntry : rankMap) {
-          if (itrEntry.first < entry.first) rank += 1;
-        }
+  public static synchronized Object cached(JobContext context, String name) {
+    String job = context.getJobID().toString();
+    if (!job.equals(cachedJob)) {
+      parsed.clear();
+      cachedJob = job;
+    }
+    return parsed.get(name);
+  }
+
+  public static synchronized void cache(JobContext context, String name, Object value) {
+    cached(context, name);
+    parsed.put(name, value);
+  }
+
+  private static boolean isCached(JobContext context, String key) throws IOException {
+    URI[] files = context.getCacheFiles();
+    if (files == null) return false;
+
+    for (URI file : files) {
+      if (linkName(key).equals(file.getFragment())) return true;
+    }
+    return false;
+  }
 
-        ctxt.write(new IntWritable(pageId), new IntWritable(rank));
+  private static String map(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return Charset.defaultCharset().decode(buffer).toString();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String linkName(String key) {
+    return "side-" + key;
+  }
+}
+
+// Open-addressing set of int ids for membership filters such as the
+// league file: contains() is a hashed probe into an int[] with no boxing.
+// Integer.MIN_VALUE marks empty slots and is tracked separately.
+class IntIdSet {
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  private int[] slots;
+  private int mask;
+  private int size;
+  private boolean containsEmpty;
+
+  public IntIdSet() {
+    allocate(16);
+  }
+
+  // One id per line; blank lines are skipped
+  public static IntIdSet parse(String contents) {
+    IntIdSet ids = new IntIdSet();
+    for (String id : contents.split("\n")) {
+      if (id.trim().isEmpty()) continue;
+      ids.add(Integer.parseInt(id.trim()));
+    }
+    return ids;
+  }
+
+  public void add(int id) {
+    if (id == EMPTY) {
+      if (!containsEmpty) size++;
+      containsEmpty = true;
+      return;
+    }
+
+    int i = slot(id);
+    while (slots[i] != EMPTY) {
+      if (slots[i] == id) return;
+      i = (i + 1) & mask;
+    }
+    slots[i] = id;
+
+    if (++size * 2 > slots.length) {
+      int[] old = slots;
+      allocate(old.length * 2);
+      for (int oldId : old) {
+        if (oldId == EMPTY) continue;
+
+        int j = slot(oldId);
+        while (slots[j] != EMPTY) j = (j + 1) & mask;
+        slots[j] = oldId;
       }
+    }
+  }
+
+  public boolean contains(int id) {
+    if (id == EMPTY) return containsEmpty;
 
+    int i = slot(id);
+    int entry;
+    while ((entry = slots[i]) != EMPTY) {
+      if (entry == id) return true;
+      i = (i + 1) & mask;
     }
+    return false;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int slot(int id) {
+    int h = id * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private void allocate(int capacity) {
+    slots = new int[capacity];
+    Arrays.fill(slots, EMPTY);
+    mask = capacity - 1;
   }
 }
 
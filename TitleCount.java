@@ -1,26 +1,66 @@
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.ReduceContext;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 // >>> Don't Change
 public class TitleCount extends Configured implements Tool {
@@ -31,6 +71,10 @@ public class TitleCount extends Configured implements Tool {
 
     @Override
     public int run(String[] args) throws Exception {
+        LocalParallelEngine.configure(this.getConf(), new Path(args[0]));
+        Path skewPath = LocalParallelEngine.scratch(this.getConf(), SKEW_PATH);
+        FileSystem.get(this.getConf()).delete(skewPath, true);
+
         Job job = Job.getInstance(this.getConf(), "Title Count");
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(IntWritable.class);
@@ -40,12 +84,29 @@ public class TitleCount extends Configured implements Tool {
 
         job.setMapperClass(TitleCountMap.class);
         job.setReducerClass(TitleCountReduce.class);
+        if (!"inmapper".equals(this.getConf().get("combine", "combiner"))) {
+            job.setCombinerClass(TitleCountReduce.class);
+        }
 
         FileInputFormat.setInputPaths(job, new Path(args[0]));
         FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        SideFiles.addCacheFiles(job, "stopwords", "delimiters");
+
+        boolean skew = "skew".equals(this.getConf().get("partition", "hash")) && job.getNumReduceTasks() > 1;
+        if (skew) {
+            int heavy = SkewPartitioner.configure(job, skewPath, sampleWords(job));
+            LOG.info("Spreading " + heavy + " heavy words over several reducers");
+            job.setReducerClass(SkewTitleCountReduce.class);
+        }
 
         job.setJarByClass(TitleCount.class);
-        return job.waitForCompletion(true) ? 0 : 1;
+        if (!runJob(job)) return 1;
+
+        if (skew) {
+            mergeHeavyWords(job, new Path(args[1]));
+        }
+        reportDistinct(job);
+        return 0;
     }
 
     public static String readHDFSFile(String path, Configuration conf) throws IOException{
@@ -65,38 +126,269 @@ public class TitleCount extends Configured implements Tool {
 
 // <<< Don't Change
 
-    public static class TitleCountMap extends Mapper<Object, Text, Text, IntWritable> {
-        List<String> stopWords;
-        String delimiters;
+    // Jobs this run completed, in order, with their wall times, so that a
+    // caller such as bench/JobBench can read their counters once run() returns
+    private final List<Job> jobs = new ArrayList<Job>();
+    private final List<Long> jobMillis = new ArrayList<Long>();
+
+    public List<Job> getJobs() {
+        return jobs;
+    }
+
+    public List<Long> getJobMillis() {
+        return jobMillis;
+    }
+
+    private boolean runJob(Job job) throws Exception {
+        long start = System.currentTimeMillis();
+        boolean success = job.waitForCompletion(true);
+        jobs.add(job);
+        jobMillis.add(System.currentTimeMillis() - start);
+        return success;
+    }
+
+
+    public static final Log LOG = LogFactory.getLog(TitleCount.class);
+
+    // TitleCountMap saves its DistinctCounter registers in this hidden
+    // directory of its job's output, where input formats skip them
+    private static final String DISTINCT_DIR = "_distinct";
+
+    public static Path distinctPath(JobContext context) {
+        return new Path(FileOutputFormat.getOutputPath(context), DISTINCT_DIR);
+    }
+
+    // TitleTokenizer tallies tokens, stop words and the words it passes on here
+    private static final String TITLE_COUNTERS = "Title Words";
+
+    // Logs the distinct word estimate merged from the registers saved by
+    // the given TitleCountMap job and removes them. Off unless -D distinct=true.
+    public static void reportDistinct(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (!conf.getBoolean("distinct", false)) return;
+
+        Path dir = distinctPath(job);
+        LOG.info("Distinct words (estimated): " + DistinctCounter.load(dir, conf).estimate());
+        dir.getFileSystem(conf).delete(dir, true);
+    }
+
+    // heavy words found by the -D partition=skew sampling pre-pass
+    private static final Path SKEW_PATH = new Path("/mp2/tmp_skew");
+
+    // Tokenizes a sample of the titles the same way TitleCountMap does
+    private static Map<Text, Integer> sampleWords(Job job) throws Exception {
+        Configuration conf = job.getConfiguration();
+        TitleFilter filter = new TitleFilter(SideFiles.read(job, "stopwords"), SideFiles.read(job, "delimiters"));
+        Map<Text, Integer> counts = new HashMap<Text, Integer>();
+
+        for (Writable value : SkewPartitioner.sampleValues(job, conf.getInt("skew.samples", 10000))) {
+            String line = value.toString();
+            int start = -1;
+
+            for (int i = 0; i <= line.length(); i++) {
+                if (i < line.length() && !filter.isDelimiter(line.charAt(i))) {
+                    if (start < 0) start = i;
+                    continue;
+                }
+                if (start < 0) continue;
+
+                String title = line.substring(start, i).trim().toLowerCase();
+                start = -1;
+                if (title.isEmpty() || filter.isStopWord(title)) continue;
+
+                Text word = new Text(title);
+                Integer count = counts.get(word);
+                counts.put(word, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    // Sums the partial counts of the heavy words into one extra part file
+    private static void mergeHeavyWords(Job job, Path outputPath) throws IOException {
+        Configuration conf = job.getConfiguration();
+        TreeMap<Text, Integer> counts = SkewPartitioner.mergeHeavyOutput(outputPath, conf, false);
+        if (counts.isEmpty()) return;
+
+        Path part = new Path(outputPath, String.format("part-r-%05d", job.getNumReduceTasks()));
+        Writer out = new OutputStreamWriter(outputPath.getFileSystem(conf).create(part), "UTF-8");
+        try {
+            for (Map.Entry<Text, Integer> entry : counts.entrySet()) {
+                out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Splits a title line on the delimiters, lowercases and trims each token
+    // and hands the ones that are not stop words to emit(). The title mappers
+    // share it and only differ in what they do with a word.
+    public abstract static class TitleTokenizer<C extends TaskInputOutputContext<?, ?, ?, ?>> {
+        private final TitleFilter filter;
+        private final boolean byteTokenizer;
+        private final Text word = new Text();
+        private long tokens;
+        private long emitted;
+
+        public TitleTokenizer(C context) throws IOException {
+            TitleFilter filter = (TitleFilter) SideFiles.cached(context, "filter");
+            if (filter == null) {
+                filter = new TitleFilter(SideFiles.read(context, "stopwords"), SideFiles.read(context, "delimiters"));
+                SideFiles.cache(context, "filter", filter);
+            }
+            this.filter = filter;
+            this.byteTokenizer = "bytes".equals(context.getConfiguration().get("tokenizer", "string"));
+        }
+
+        protected abstract void emit(Text word, C context) throws IOException, InterruptedException;
+
+        public void tokenize(Text value, C context) throws IOException, InterruptedException {
+          if (this.byteTokenizer) {
+            tokenizeBytes(value, context);
+          } else {
+            tokenizeString(value.toString(), context);
+          }
+        }
+
+        private void tokenizeString(String line, C context) throws IOException, InterruptedException {
+          int start = -1;
+
+          for (int i = 0; i <= line.length(); i++) {
+            if (i < line.length() && !this.filter.isDelimiter(line.charAt(i))) {
+              if (start < 0) start = i;
+              continue;
+            }
+            if (start < 0) continue;
+
+            String title = line.substring(start, i).trim().toLowerCase();
+            start = -1;
+
+            this.tokens++;
+            if (!this.filter.isStopWord(title)) {
+              this.emitted++;
+              emit(new Text(title), context);
+            }
+          }
+        }
+
+        // Tokenizes the UTF-8 bytes of the record directly, lowercasing ASCII
+        // in place and emitting through the reused word instance. Only
+        // tokens containing multi-byte characters go through tokenizeString.
+        private void tokenizeBytes(Text value, C context) throws IOException, InterruptedException {
+          byte[] bytes = value.getBytes();
+          int length = value.getLength();
+          int start = -1;
+          boolean ascii = true;
+
+          for (int i = 0; i <= length; i++) {
+            if (i < length && (bytes[i] < 0 || !this.filter.isDelimiter((char) bytes[i]))) {
+              if (start < 0) {
+                start = i;
+                ascii = true;
+              }
+              if (bytes[i] < 0) {
+                ascii = false;
+              } else if (bytes[i] >= 'A' && bytes[i] <= 'Z') {
+                bytes[i] += 'a' - 'A';
+              }
+              continue;
+            }
+            if (start < 0) continue;
+
+            if (ascii) {
+              int end = i;
+              while (start < end && bytes[start] <= ' ') start++;
+              while (end > start && bytes[end - 1] <= ' ') end--;
+
+              this.tokens++;
+              if (!this.filter.isStopWord(bytes, start, end)) {
+                this.emitted++;
+                this.word.set(bytes, start, end - start);
+                emit(this.word, context);
+              }
+            } else {
+              tokenizeString(Text.decode(bytes, start, i - start), context);
+            }
+            start = -1;
+          }
+        }
+
+        // Adds this task's tallies to TITLE_COUNTERS; the stop words are the
+        // tokens that were not passed on
+        public void countTokens(C context) {
+            context.getCounter(TITLE_COUNTERS, "Tokens seen").increment(this.tokens);
+            context.getCounter(TITLE_COUNTERS, "Stop words filtered").increment(this.tokens - this.emitted);
+            context.getCounter(TITLE_COUNTERS, "Keys emitted").increment(this.emitted);
+        }
+    }
+
+    public static class TitleCountMap extends TimedMapper<Object, Text, Text, IntWritable> {
+        TitleTokenizer<Context> tokenizer;
+        WordCounts counts;
+        long countsBudget;
+        DistinctCounter distinct;
+
+        private final IntWritable one = new IntWritable(1);
 
         @Override
         protected void setup(Context context) throws IOException,InterruptedException {
+
             Configuration conf = context.getConfiguration();
 
-            String stopWordsPath = conf.get("stopwords");
-            String delimitersPath = conf.get("delimiters");
+            this.tokenizer = new TitleTokenizer<Context>(context) {
+                @Override
+                protected void emit(Text word, Context context) throws IOException, InterruptedException {
+                    write(word, context);
+                }
+            };
+            if (conf.getBoolean("distinct", false)) {
+                this.distinct = new DistinctCounter();
+            }
 
-            this.stopWords = Arrays.asList(readHDFSFile(stopWordsPath, conf).split("\n"));
-            this.delimiters = readHDFSFile(delimitersPath, conf);
+            if ("inmapper".equals(conf.get("combine", "combiner"))) {
+                this.counts = new WordCounts();
+                this.countsBudget = conf.getLong("combine.memory.mb", 64) << 20;
+            }
         }
 
 
         @Override
         public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString();
-            StringTokenizer st = new StringTokenizer(line, this.delimiters);
+          this.tokenizer.tokenize(value, context);
+        }
 
-            while (st.hasMoreTokens()) {
-              String title = st.nextToken();
+        // Every token goes through here: straight to the context, or into the
+        // in-mapper table which is flushed once it outgrows its budget.
+        private void write(Text word, Context context) throws IOException, InterruptedException {
+          if (this.distinct != null) {
+            this.distinct.add(word.getBytes(), word.getLength());
+          }
 
-              if (!this.stopWords.contains(title.trim().toLowerCase())) {
-                context.write(new Text(title.trim().toLowerCase()), new IntWritable(1));
-              }
-            }
+          if (this.counts == null) {
+            context.write(word, this.one);
+            return;
+          }
+
+          this.counts.add(word.getBytes(), word.getLength(), 1);
+          if (this.counts.memory() > this.countsBudget) {
+            this.counts.flush(context);
+          }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+          this.tokenizer.countTokens(context);
+          if (this.counts != null) {
+            this.counts.flush(context);
+          }
+          if (this.distinct != null) {
+            this.distinct.save(distinctPath(context), context);
+          }
         }
     }
 
-    public static class TitleCountReduce extends Reducer<Text, IntWritable, Text, IntWritable> {
+    public static class TitleCountReduce extends TimedReducer<Text, IntWritable, Text, IntWritable> {
         @Override
         public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
             int sum = 0;
@@ -107,4 +399,658 @@ public class TitleCount extends Configured implements Tool {
             context.write(new Text(key), new IntWritable(sum));
         }
     }
+
+    // TitleCountReduce for -D partition=skew. A heavy word only has a
+    // partial count here, so it goes to the side output for the driver.
+    public static class SkewTitleCountReduce extends TimedReducer<Text, IntWritable, Text, IntWritable> {
+        private Set<Object> heavy;
+        private MultipleOutputs<Text, IntWritable> heavyOut;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            this.heavy = SkewPartitioner.readHeavyKeys(context.getConfiguration());
+            this.heavyOut = new MultipleOutputs<Text, IntWritable>(context);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable val : values) {
+              sum += val.get();
+            }
+
+            if (heavy.contains(key)) {
+              heavyOut.write(SkewPartitioner.HEAVY_OUTPUT, key, new IntWritable(sum));
+            } else {
+              context.write(key, new IntWritable(sum));
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            heavyOut.close();
+        }
+    }
+
+    // Stop word and delimiter lookups for the title mappers. Both tables are
+    // built once in setup() so that map() pays a single probe per character
+    // and per token instead of a StringTokenizer delimiter scan and a linear
+    // List.contains().
+    public static class TitleFilter {
+        private final long[] delimiters = new long[1 << 10];
+        private final String[] stopWords;
+        private final int mask;
+
+        public TitleFilter(String stopWords, String delimiters) {
+            for (int i = 0; i < delimiters.length(); i++) {
+                char c = delimiters.charAt(i);
+                this.delimiters[c >>> 6] |= 1L << c;
+            }
+
+            String[] words = stopWords.split("\n");
+            int size = 2;
+            while (size < words.length * 2) {
+                size <<= 1;
+            }
+            this.stopWords = new String[size];
+            this.mask = size - 1;
+
+            for (String word : words) {
+                int i = slot(word.hashCode());
+                while (this.stopWords[i] != null && !this.stopWords[i].equals(word)) {
+                    i = (i + 1) & mask;
+                }
+                this.stopWords[i] = word;
+            }
+        }
+
+        public boolean isDelimiter(char c) {
+            return (delimiters[c >>> 6] & (1L << c)) != 0;
+        }
+
+        public boolean isStopWord(String word) {
+            int i = slot(word.hashCode());
+            String entry;
+            while ((entry = stopWords[i]) != null) {
+                if (entry.equals(word)) return true;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        // Same lookup over an ASCII byte range. String.hashCode() of an ASCII
+        // string is the same polynomial over its bytes, so no String is needed.
+        public boolean isStopWord(byte[] bytes, int start, int end) {
+            int h = 0;
+            for (int k = start; k < end; k++) {
+                h = 31 * h + bytes[k];
+            }
+
+            int i = slot(h);
+            String entry;
+            while ((entry = stopWords[i]) != null) {
+                if (matches(entry, bytes, start, end)) return true;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        private static boolean matches(String entry, byte[] bytes, int start, int end) {
+            if (entry.length() != end - start) return false;
+            for (int k = start; k < end; k++) {
+                if (entry.charAt(k - start) != bytes[k]) return false;
+            }
+            return true;
+        }
+
+        private int slot(int h) {
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
+
+// HyperLogLog distinct-value counter with 2^14 one-byte registers, for a
+// standard error of about 0.8%. Every map task saves its registers to a
+// file of its own under a shared directory and the driver takes the
+// register-wise maximum over all of them. A retried or speculative attempt
+// can only repeat the same maxima, so it never inflates the estimate, and
+// the short file of an attempt killed mid-write is skipped.
+class DistinctCounter {
+    private static final int P = 14;
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    // FNV-1a over the bytes, finished with the 64-bit mix below
+    public void add(byte[] bytes, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int k = 0; k < length; k++) {
+            h ^= bytes[k] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    public void add(int value) {
+        addHash(mix(value));
+    }
+
+    public long estimate() {
+        double sum = 0.0;
+        int zeros = 0;
+        for (int i = 0; i < M; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) zeros++;
+        }
+
+        double estimate = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+        // linear counting is more accurate while many registers are empty
+        if (estimate <= 2.5 * M && zeros > 0) {
+            estimate = M * Math.log((double) M / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public void save(Path dir, TaskAttemptContext context) throws IOException {
+        Path file = new Path(dir, context.getTaskAttemptID().toString());
+        FSDataOutputStream out = file.getFileSystem(context.getConfiguration()).create(file, true);
+        try {
+            out.write(registers);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static DistinctCounter load(Path dir, Configuration conf) throws IOException {
+        DistinctCounter counter = new DistinctCounter();
+        FileSystem fs = dir.getFileSystem(conf);
+        if (!fs.exists(dir)) return counter;
+
+        byte[] other = new byte[M];
+        for (FileStatus file : fs.listStatus(dir)) {
+            // an attempt killed while writing leaves a short file
+            if (file.getLen() != M) continue;
+            FSDataInputStream in = fs.open(file.getPath());
+            try {
+                in.readFully(other);
+            } finally {
+                in.close();
+            }
+            for (int i = 0; i < M; i++) {
+                if (other[i] > counter.registers[i]) counter.registers[i] = other[i];
+            }
+        }
+        return counter;
+    }
+
+    private void addHash(long h) {
+        int i = (int) (h >>> (64 - P));
+        // position of the first 1 bit after the index bits, capped at 64 - P + 1
+        byte rank = (byte) (Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1);
+        if (rank > registers[i]) registers[i] = rank;
+    }
+
+    // MurmurHash3 fmix64
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+// Partitioner for -D partition=skew. The driver samples the input before
+// the job and lists the keys that would overload a single reducer in a
+// SequenceFile; records for those keys are dealt round-robin over
+// skew.spread consecutive reducers, and every other key is placed exactly
+// as HashPartitioner would place it. Reducers send their partial results
+// for the heavy keys to the "heavy" side output, which the driver merges
+// once the job is done.
+class SkewPartitioner<K, V> extends Partitioner<K, V> implements Configurable {
+    public static final String HEAVY_OUTPUT = "heavy";
+    private static final String SKEW_FILE = "skew.file";
+
+    private Configuration conf;
+    private Set<Object> heavy;
+    private int spread;
+    private int next;
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        this.spread = conf.getInt("skew.spread", 4);
+        try {
+            this.heavy = readHeavyKeys(conf);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read heavy keys file", e);
+        }
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public int getPartition(K key, V value, int numPartitions) {
+        int partition = (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+        if (!heavy.contains(key)) return partition;
+
+        next = (next + 1) % Math.min(spread, numPartitions);
+        return (partition + next) % numPartitions;
+    }
+
+    // Keys holding more than half of one reducer's fair share of the
+    // sample are heavy. They are written to file, and the job is switched
+    // to this partitioner with a SequenceFile side output for their partial
+    // values. Returns the number of heavy keys.
+    public static int configure(Job job, Path file, Map<? extends Writable, Integer> samples) throws IOException {
+        Configuration conf = job.getConfiguration();
+        long total = 0;
+        for (int count : samples.values()) {
+            total += count;
+        }
+
+        int heavy = 0;
+        SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(job.getMapOutputKeyClass()),
+                SequenceFile.Writer.valueClass(NullWritable.class));
+        try {
+            for (Map.Entry<? extends Writable, Integer> entry : samples.entrySet()) {
+                if (2L * job.getNumReduceTasks() * entry.getValue() <= total) continue;
+
+                writer.append(entry.getKey(), NullWritable.get());
+                heavy++;
+            }
+        } finally {
+            writer.close();
+        }
+
+        conf.set(SKEW_FILE, file.toString());
+        job.setPartitionerClass(SkewPartitioner.class);
+        MultipleOutputs.addNamedOutput(job, HEAVY_OUTPUT, SequenceFileOutputFormat.class, job.getMapOutputKeyClass(), IntWritable.class);
+        return heavy;
+    }
+
+    public static Set<Object> readHeavyKeys(Configuration conf) throws IOException {
+        Set<Object> keys = new HashSet<Object>();
+        String file = conf.get(SKEW_FILE);
+        if (file == null) return keys;
+
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(new Path(file)));
+        try {
+            Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            while (reader.next(key)) {
+                keys.add(key);
+                key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            }
+        } finally {
+            reader.close();
+        }
+        return keys;
+    }
+
+    // The first records of every input split, like InputSampler.SplitSampler.
+    // Values are copied since record readers reuse them.
+    @SuppressWarnings("unchecked")
+    public static List<Writable> sampleValues(Job job, int samples) throws Exception {
+        Configuration conf = job.getConfiguration();
+        InputFormat<Writable, Writable> inputFormat = (InputFormat<Writable, Writable>)
+                ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        int perSplit = samples / Math.max(splits.size(), 1) + 1;
+
+        List<Writable> values = new ArrayList<Writable>();
+        for (InputSplit split : splits) {
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            RecordReader<Writable, Writable> reader = inputFormat.createRecordReader(split, context);
+            try {
+                reader.initialize(split, context);
+                for (int i = 0; i < perSplit && reader.nextKeyValue(); i++) {
+                    values.add(WritableUtils.clone(reader.getCurrentValue(), conf));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return values;
+    }
+
+    // Folds the partial values written for the heavy keys back together,
+    // by sum or by bitwise or, and deletes the side files.
+    @SuppressWarnings("unchecked")
+    public static <K extends Writable & Comparable<? super K>> TreeMap<K, Integer> mergeHeavyOutput(Path outputPath, Configuration conf, boolean or) throws IOException {
+        FileSystem fs = outputPath.getFileSystem(conf);
+        TreeMap<K, Integer> merged = new TreeMap<K, Integer>();
+
+        for (FileStatus status : fs.listStatus(outputPath)) {
+            if (!status.getPath().getName().startsWith(HEAVY_OUTPUT + "-")) continue;
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+            try {
+                K key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+                IntWritable value = new IntWritable();
+                while (reader.next(key, value)) {
+                    Integer previous = merged.get(key);
+                    int v = value.get();
+                    if (previous != null) v = or ? previous | v : previous + v;
+
+                    merged.put(key, v);
+                    key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+                }
+            } finally {
+                reader.close();
+            }
+            fs.delete(status.getPath(), false);
+        }
+        return merged;
+    }
+}
+
+// Loads the small side files that every mapper needs: stopwords,
+// delimiters and league. The driver ships them through the distributed
+// cache, and each task memory-maps its localized copy instead of opening
+// the file on HDFS. Without a cached copy, the configured path is read
+// directly. Parsed results can be kept for the rest of the job with
+// cache(), so tasks that share a JVM (local runner, uber jobs) parse them
+// only once.
+class SideFiles {
+    private static String cachedJob;
+    private static final Map<String, Object> parsed = new HashMap<String, Object>();
+
+    // Ships the file configured under each key, linked as "side-<key>"
+    public static void addCacheFiles(Job job, String... keys) throws IOException {
+        Configuration conf = job.getConfiguration();
+        for (String key : keys) {
+            String value = conf.get(key);
+            if (value == null) continue;
+
+            Path path = new Path(value);
+            URI uri = path.getFileSystem(conf).makeQualified(path).toUri();
+            try {
+                job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, linkName(key)));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // The lines of the file configured under key, each followed by "\n",
+    // exactly as readHDFSFile returns them
+    public static String read(JobContext context, String key) throws IOException {
+        Configuration conf = context.getConfiguration();
+        File local = new File(linkName(key));
+        Reader reader;
+        if (isCached(context, key) && local.isFile()) {
+            reader = new StringReader(map(local));
+        } else {
+            Path path = new Path(conf.get(key));
+            reader = new InputStreamReader(path.getFileSystem(conf).open(path));
+        }
+
+        BufferedReader in = new BufferedReader(reader);
+        try {
+            StringBuilder everything = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                everything.append(line);
+                everything.append("\n");
+            }
+            return everything.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    public static synchronized Object cached(JobContext context, String name) {
+        String job = context.getJobID().toString();
+        if (!job.equals(cachedJob)) {
+            parsed.clear();
+            cachedJob = job;
+        }
+        return parsed.get(name);
+    }
+
+    public static synchronized void cache(JobContext context, String name, Object value) {
+        cached(context, name);
+        parsed.put(name, value);
+    }
+
+    private static boolean isCached(JobContext context, String key) throws IOException {
+        URI[] files = context.getCacheFiles();
+        if (files == null) return false;
+
+        for (URI file : files) {
+            if (linkName(key).equals(file.getFragment())) return true;
+        }
+        return false;
+    }
+
+    private static String map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Charset.defaultCharset().decode(buffer).toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String linkName(String key) {
+        return "side-" + key;
+    }
+}
+
+// Mapper that times its own setup, map loop and cleanup and adds the
+// nanoseconds to the "<stage> setup/map/cleanup" counters of the
+// PHASE_COUNTERS group, where they show up in the job history next to the
+// built-in counters. The map phase runs from the first record read to the
+// last map() returning, so it includes reading input and collecting output
+// but not the final sort and spill. Nothing is timed per record.
+abstract class TimedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+    public static final String PHASE_COUNTERS = "Phase Time (ns)";
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        setup(context);
+        long mapStart = System.nanoTime();
+        long cleanupStart;
+        try {
+            while (context.nextKeyValue()) {
+                map(context.getCurrentKey(), context.getCurrentValue(), context);
+            }
+        } finally {
+            cleanupStart = System.nanoTime();
+            cleanup(context);
+        }
+        long end = System.nanoTime();
+
+        String stage = getClass().getSimpleName();
+        context.getCounter(PHASE_COUNTERS, stage + " setup").increment(mapStart - start);
+        context.getCounter(PHASE_COUNTERS, stage + " map").increment(cleanupStart - mapStart);
+        context.getCounter(PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+    }
+}
+
+// Reducer counterpart of TimedMapper. The reduce phase covers iterating the
+// merged, sorted input, so it includes the final merge and deserializing
+// the values. Combiners are timed the same way, inside the map task, and
+// count under "<stage> combiner setup/reduce/cleanup" instead.
+abstract class TimedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run(Context context) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        setup(context);
+        long reduceStart = System.nanoTime();
+        long cleanupStart;
+        try {
+            while (context.nextKey()) {
+                reduce(context.getCurrentKey(), context.getValues(), context);
+                // as in Reducer.run(), a mark()ed value iterator has to be reset per key
+                Iterator<VALUEIN> values = context.getValues().iterator();
+                if (values instanceof ReduceContext.ValueIterator) {
+                    ((ReduceContext.ValueIterator<VALUEIN>) values).resetBackupStore();
+                }
+            }
+        } finally {
+            cleanupStart = System.nanoTime();
+            cleanup(context);
+        }
+        long end = System.nanoTime();
+
+        String stage = getClass().getSimpleName();
+        // a combiner runs inside the map task; keep its time apart from the reduce side
+        if (context.getTaskAttemptID().getTaskType() == TaskType.MAP) stage += " combiner";
+        context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " setup").increment(reduceStart - start);
+        context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " reduce").increment(cleanupStart - reduceStart);
+        context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+    }
+}
+
+// -D engine=local-parallel runs every job of the tool inside this JVM on
+// the local job runner and the local filesystem, without submitting to
+// YARN. Each job gets engine.threads concurrent map and reduce tasks, one
+// per core by default. The input is split into at least one piece per
+// thread, and jobs that don't pin their reducer count get one reducer per
+// thread, so every stage runs in parallel.
+class LocalParallelEngine {
+    private static final long MIN_SPLIT = 1 << 20;
+
+    public static void configure(Configuration conf, Path input) throws IOException {
+        if (!"local-parallel".equals(conf.get("engine"))) return;
+
+        int threads = conf.getInt("engine.threads", Runtime.getRuntime().availableProcessors());
+        conf.set("mapreduce.framework.name", "local");
+        conf.set("fs.defaultFS", "file:///");
+        conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+        conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+
+        // an explicit -D mapreduce.job.reduces still wins
+        String[] sources = conf.getPropertySources(MRJobConfig.NUM_REDUCES);
+        if (sources == null || sources[sources.length - 1].endsWith("-default.xml")) {
+            conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+        }
+
+        long size = input.getFileSystem(conf).getContentSummary(input).getLength();
+        conf.setLong(FileInputFormat.SPLIT_MAXSIZE, Math.max(MIN_SPLIT, (size + threads - 1) / threads));
+    }
+
+    // The tools keep their job-to-job data under /mp2 on the cluster
+    // filesystem. Once configure() has switched to the local filesystem that
+    // would be the root of the local disk, so the same layout moves under
+    // hadoop.tmp.dir instead.
+    public static Path scratch(Configuration conf, Path path) {
+        if (!"local-parallel".equals(conf.get("engine"))) return path;
+        return new Path(conf.get("hadoop.tmp.dir"), path.toUri().getPath().substring(1));
+    }
+}
+
+// Open-addressing word -> count table for in-mapper combining. Keys are
+// kept as UTF-8 byte arrays and counts as a parallel int[], so adding a
+// word that is already present allocates nothing.
+class WordCounts {
+    // rough object header cost of each copied key
+    private static final int KEY_OVERHEAD = 16;
+
+    private byte[][] keys;
+    private int[] hashes;
+    private int[] counts;
+    private int mask;
+    private int size;
+    private long memory;
+
+    private final Text word = new Text();
+    private final IntWritable count = new IntWritable();
+
+    public WordCounts() {
+        allocate(1 << 10);
+    }
+
+    public void add(byte[] bytes, int length, int n) {
+        int h = 0;
+        for (int k = 0; k < length; k++) {
+            h = 31 * h + bytes[k];
+        }
+
+        int i = (h ^ (h >>> 16)) & mask;
+        byte[] key;
+        while ((key = keys[i]) != null) {
+            if (hashes[i] == h && matches(key, bytes, length)) {
+                counts[i] += n;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = Arrays.copyOf(bytes, length);
+        hashes[i] = h;
+        counts[i] = n;
+        memory += length + KEY_OVERHEAD;
+
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    // approximate heap held by the table, checked against the flush budget
+    public long memory() {
+        return memory + (long) keys.length * (8 + 4 + 4);
+    }
+
+    public void flush(TaskInputOutputContext<?, ?, Text, IntWritable> context) throws IOException, InterruptedException {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+
+            word.set(keys[i]);
+            count.set(counts[i]);
+            context.write(word, count);
+        }
+        allocate(1 << 10);
+    }
+
+    private static boolean matches(byte[] key, byte[] bytes, int length) {
+        if (key.length != length) return false;
+        for (int k = 0; k < length; k++) {
+            if (key[k] != bytes[k]) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+        long oldMemory = memory;
+        int oldSize = size;
+
+        allocate(oldKeys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) continue;
+
+            int i = (oldHashes[j] ^ (oldHashes[j] >>> 16)) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            hashes[i] = oldHashes[j];
+            counts[i] = oldCounts[j];
+        }
+        memory = oldMemory;
+        size = oldSize;
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        memory = 0;
+    }
 }
@@ -1,27 +1,72 @@
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.ReduceContext;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.KeyValueTextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.Integer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TreeSet;
+import java.util.TreeMap;
 
 // >>> Don't Change
 public class TopPopularLinks extends Configured implements Tool {
@@ -48,12 +93,44 @@ public class TopPopularLinks extends Configured implements Tool {
     }
 // <<< Don't Change
 
+  // Jobs this run completed, in order, with their wall times, so that a
+  // caller such as bench/JobBench can read their counters once run() returns
+  private final List<Job> jobs = new ArrayList<Job>();
+  private final List<Long> jobMillis = new ArrayList<Long>();
+
+  public List<Job> getJobs() {
+    return jobs;
+  }
+
+  public List<Long> getJobMillis() {
+    return jobMillis;
+  }
+
+  private boolean runJob(Job job) throws Exception {
+    long start = System.currentTimeMillis();
+    boolean success = job.waitForCompletion(true);
+    jobs.add(job);
+    jobMillis.add(System.currentTimeMillis() - start);
+    return success;
+  }
+
   @Override
   public int run(String[] args) throws Exception {
     Configuration conf = this.getConf();
+    LocalParallelEngine.configure(conf, new Path(args[0]));
     FileSystem fs = FileSystem.get(conf);
-    Path tmpPath = new Path("/mp2/tmp");
+    Path tmpPath = LocalParallelEngine.scratch(conf, new Path("/mp2/tmp"));
+    Path skewPath = LocalParallelEngine.scratch(conf, SKEW_PATH);
     fs.delete(tmpPath, true);
+    fs.delete(LocalParallelEngine.scratch(conf, RANGED_PATH), true);
+    fs.delete(LocalParallelEngine.scratch(conf, PARTITIONS_PATH), true);
+    fs.delete(skewPath, true);
+
+    // The ranged pipeline fills the output itself instead of through
+    // FileOutputFormat, so it checks the output up front before any job runs
+    boolean ranged = "ranged".equals(conf.get("pipeline", "twojob"));
+    Path outputPath = new Path(args[1]);
+    if (ranged) checkOutputDoesNotExist(conf, outputPath);
 
     // Link Count Job Configuration
     Job linkJob = Job.getInstance(conf, "Top Popular Links");
@@ -61,14 +138,36 @@ public class TopPopularLinks extends Configured implements Tool {
     linkJob.setOutputKeyClass(IntWritable.class);
     linkJob.setOutputValueClass(IntWritable.class);
 
-    linkJob.setMapperClass(LinkCountMap.class);
+    if ("binary".equals(conf.get("linkformat", "text"))) {
+      linkJob.setInputFormatClass(SequenceFileInputFormat.class);
+      linkJob.setMapperClass(LinkListCountMap.class);
+    } else {
+      linkJob.setMapperClass(LinkCountMap.class);
+    }
     linkJob.setReducerClass(LinkCountReduce.class);
 
     FileInputFormat.setInputPaths(linkJob, new Path(args[0]));
     FileOutputFormat.setOutputPath(linkJob, tmpPath);
+    setIntermediateOutput(linkJob);
+
+    boolean skew = "skew".equals(conf.get("partition", "hash")) && linkJob.getNumReduceTasks() > 1;
+    if (skew) {
+      int heavy = SkewPartitioner.configure(linkJob, skewPath, sampleLinkTargets(linkJob));
+      LOG.info("Spreading " + heavy + " heavy pages over several reducers");
+      linkJob.setReducerClass(SkewLinkCountReduce.class);
+    }
 
     linkJob.setJarByClass(TopPopularLinks.class);
-    linkJob.waitForCompletion(true);
+    runJob(linkJob);
+    int heavyPages = 0;
+    if (skew) {
+      heavyPages = mergeHeavyLinks(linkJob, tmpPath);
+    }
+    reportDistinct(linkJob);
+
+    if (ranged) {
+      return runRanged(conf, linkJob, heavyPages, tmpPath, outputPath);
+    }
 
     // Top Link Job Configuration
     Job topLinksJob = Job.getInstance(conf, "Top Popular Links");
@@ -77,29 +176,336 @@ public class TopPopularLinks extends Configured implements Tool {
     topLinksJob.setOutputValueClass(IntWritable.class);
 
     topLinksJob.setMapOutputKeyClass(NullWritable.class);
-    topLinksJob.setMapOutputValueClass(IntArrayWritable.class);
+    topLinksJob.setMapOutputValueClass(IntIntPairWritable.class);
 
     topLinksJob.setMapperClass(TopLinksMap.class);
     topLinksJob.setReducerClass(TopLinksReduce.class);
     topLinksJob.setNumReduceTasks(1);
 
     FileInputFormat.setInputPaths(topLinksJob, tmpPath);
-    FileOutputFormat.setOutputPath(topLinksJob, new Path(args[1]));
+    FileOutputFormat.setOutputPath(topLinksJob, outputPath);
 
-    topLinksJob.setInputFormatClass(KeyValueTextInputFormat.class);
+    setIntermediateInput(topLinksJob);
     topLinksJob.setOutputFormatClass(TextOutputFormat.class);
 
     topLinksJob.setJarByClass(TopPopularLinks.class);
-    return topLinksJob.waitForCompletion(true) ? 0 : 1;
+    return runJob(topLinksJob) ? 0 : 1;
+  }
+
+  private static final Path RANGED_PATH = new Path("/mp2/tmp_ranged");
+  private static final Path PARTITIONS_PATH = new Path("/mp2/tmp_partitions");
+  private static final String PARTITION_COUNTERS = "Top Links Partitions";
+
+  // heavy pages found by the -D partition=skew sampling pre-pass
+  private static final Path SKEW_PATH = new Path("/mp2/tmp_skew");
+
+  // Counts the link targets in a sample of the input; hub pages are the
+  // keys that pile up on one reducer
+  private static Map<IntWritable, Integer> sampleLinkTargets(Job job) throws Exception {
+    Configuration conf = job.getConfiguration();
+    Map<IntWritable, Integer> counts = new HashMap<IntWritable, Integer>();
+    LinkLineParser parser = new LinkLineParser();
+
+    for (Writable value : SkewPartitioner.sampleValues(job, conf.getInt("skew.samples", 10000))) {
+      if (value instanceof LinkListWritable) {
+        LinkListWritable links = (LinkListWritable) value;
+        for (int i = 0; i < links.size(); i++) {
+          countTarget(counts, links.get(i));
+        }
+      } else {
+        parser.reset((Text) value);
+        while (parser.hasNext()) {
+          countTarget(counts, parser.next());
+        }
+      }
+    }
+    return counts;
+  }
+
+  private static void countTarget(Map<IntWritable, Integer> counts, int target) {
+    IntWritable key = new IntWritable(target);
+    Integer count = counts.get(key);
+    counts.put(key, count == null ? 1 : count + 1);
+  }
+
+  // Sums the partial counts of the heavy pages into one extra part file,
+  // written in the same format as the rest of the link counts. Returns the
+  // number of heavy pages written.
+  private static int mergeHeavyLinks(Job job, Path countsPath) throws IOException {
+    Configuration conf = job.getConfiguration();
+    TreeMap<IntWritable, Integer> counts = SkewPartitioner.mergeHeavyOutput(countsPath, conf, false);
+    if (counts.isEmpty()) return 0;
+
+    Path part = new Path(countsPath, String.format("part-r-%05d", job.getNumReduceTasks()));
+    if ("sequence".equals(conf.get("intermediate", "text"))) {
+      SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+          SequenceFile.Writer.file(part),
+          SequenceFile.Writer.keyClass(IntWritable.class),
+          SequenceFile.Writer.valueClass(IntWritable.class),
+          SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK));
+      try {
+        for (Map.Entry<IntWritable, Integer> entry : counts.entrySet()) {
+          writer.append(entry.getKey(), new IntWritable(entry.getValue()));
+        }
+      } finally {
+        writer.close();
+      }
+      return counts.size();
+    }
+
+    Writer out = new OutputStreamWriter(part.getFileSystem(conf).create(part), "UTF-8");
+    try {
+      for (Map.Entry<IntWritable, Integer> entry : counts.entrySet()) {
+        out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    return counts.size();
+  }
+
+  // The link count mappers save their DistinctCounter registers in this
+  // hidden directory of their job's output, where input formats skip them
+  private static final String DISTINCT_DIR = "_distinct";
+
+  public static Path distinctPath(JobContext context) {
+    return new Path(FileOutputFormat.getOutputPath(context), DISTINCT_DIR);
+  }
+
+  // Logs the estimated number of distinct linked-to pages merged from the
+  // registers saved by the given link count job and removes them. Off
+  // unless -D distinct=true.
+  public static void reportDistinct(Job job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    if (!conf.getBoolean("distinct", false)) return;
+
+    Path dir = distinctPath(job);
+    LOG.info("Distinct linked pages (estimated): " + DistinctCounter.load(dir, conf).estimate());
+    dir.getFileSystem(conf).delete(dir, true);
   }
 
-  public static class LinkCountMap extends Mapper<Object, Text, IntWritable, IntWritable> {
+  // Top N without a single reducer: the per-mapper candidates are keyed by
+  // packed (count, pageId), range partitioned on split points sampled from
+  // the link counts and sorted in decreasing order, so the part files are
+  // globally sorted. Only the leading partitions that hold the top N are
+  // moved into the output; the rest are never read.
+  private int runRanged(Configuration conf, Job linkJob, int heavyPages, Path countsPath, Path outputPath) throws Exception {
+    int n = conf.getInt("N", 10);
+    Path rangedPath = LocalParallelEngine.scratch(conf, RANGED_PATH);
+    Path partitionsPath = LocalParallelEngine.scratch(conf, PARTITIONS_PATH);
+    Job rangeJob = Job.getInstance(conf, "Top Popular Links");
+
+    rangeJob.setOutputKeyClass(IntWritable.class);
+    rangeJob.setOutputValueClass(IntWritable.class);
+
+    rangeJob.setMapOutputKeyClass(LongWritable.class);
+    rangeJob.setMapOutputValueClass(NullWritable.class);
+    rangeJob.setSortComparatorClass(LongWritable.DecreasingComparator.class);
+
+    rangeJob.setMapperClass(RangeTopLinksMap.class);
+    rangeJob.setReducerClass(RangeTopLinksReduce.class);
+
+    FileInputFormat.setInputPaths(rangeJob, countsPath);
+    FileOutputFormat.setOutputPath(rangeJob, rangedPath);
+    setIntermediateInput(rangeJob);
+
+    int reducers = rangeJob.getNumReduceTasks();
+    if (reducers > 1) {
+      // heavy pages leave the skew reducers through MultipleOutputs, which
+      // REDUCE_OUTPUT_RECORDS does not count
+      long pages = linkJob.getCounters().findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS).getValue() + heavyPages;
+      writeSplitPoints(rangeJob, partitionsPath, pages, n, reducers);
+      TotalOrderPartitioner.setPartitionFile(rangeJob.getConfiguration(), partitionsPath);
+      rangeJob.setPartitionerClass(TotalOrderPartitioner.class);
+    }
+
+    rangeJob.setJarByClass(TopPopularLinks.class);
+    if (!runJob(rangeJob)) return 1;
+
+    moveLeadingPartitions(rangeJob, rangedPath, outputPath, n);
+    return 0;
+  }
+
+  // Spreads the split points over the sampled share of the top N (with some
+  // slack) so that the leading reducers divide the candidates that matter
+  // and everything further down lands in the trailing partitions.
+  private static void writeSplitPoints(Job job, Path partitionsPath, long pages, int n, int reducers) throws Exception {
+    Configuration conf = job.getConfiguration();
+    long[] keys = sampleLinkCounts(job, conf.getInt("ranged.samples", 10000));
+
+    double topShare = Math.min(1.0, 2.0 * n / Math.max(pages, 1));
+    int region = (int) Math.min(keys.length, Math.max(reducers, Math.ceil(topShare * keys.length)));
+
+    SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(partitionsPath),
+        SequenceFile.Writer.keyClass(LongWritable.class),
+        SequenceFile.Writer.valueClass(NullWritable.class));
+    try {
+      long previous = Long.MAX_VALUE;
+      for (int i = 1; i < reducers; i++) {
+        int index = (int) ((long) i * region / reducers);
+        long split = index < keys.length ? keys[index] : previous - 1;
+        // TotalOrderPartitioner needs strictly decreasing split points
+        if (split >= previous) split = previous - 1;
+
+        writer.append(new LongWritable(split), NullWritable.get());
+        previous = split;
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  // Like InputSampler.SplitSampler: the first records of every split,
+  // packed and sorted in decreasing order
+  @SuppressWarnings("unchecked")
+  private static long[] sampleLinkCounts(Job job, int samples) throws Exception {
+    InputFormat<Writable, Writable> inputFormat = (InputFormat<Writable, Writable>)
+        ReflectionUtils.newInstance(job.getInputFormatClass(), job.getConfiguration());
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    int perSplit = samples / Math.max(splits.size(), 1) + 1;
+
+    long[] keys = new long[0];
+    int size = 0;
+    for (InputSplit split : splits) {
+      TaskAttemptContext context = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID());
+      RecordReader<Writable, Writable> reader = inputFormat.createRecordReader(split, context);
+      try {
+        reader.initialize(split, context);
+        for (int i = 0; i < perSplit && reader.nextKeyValue(); i++) {
+          if (size == keys.length) keys = Arrays.copyOf(keys, Math.max(16, size * 2));
+          keys[size++] = pack(intValue(reader.getCurrentValue()), intValue(reader.getCurrentKey()));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    keys = Arrays.copyOf(keys, size);
+    Arrays.sort(keys);
+    for (int i = 0, j = size - 1; i < j; i++, j--) {
+      long key = keys[i];
+      keys[i] = keys[j];
+      keys[j] = key;
+    }
+    return keys;
+  }
+
+  // Walks the partitions from the highest counts down using the per-reducer
+  // record counters: whole partitions are renamed into the output and the
+  // one that crosses N is cut short.
+  private static void moveLeadingPartitions(Job job, Path rangedPath, Path outputPath, int n) throws IOException {
+    Configuration conf = job.getConfiguration();
+    FileSystem fs = outputPath.getFileSystem(conf);
+    checkOutputDoesNotExist(conf, outputPath);
+    fs.mkdirs(outputPath);
+
+    CounterGroup sizes = job.getCounters().getGroup(PARTITION_COUNTERS);
+    long remaining = n;
+    for (int p = 0; p < job.getNumReduceTasks() && remaining > 0; p++) {
+      long size = sizes.findCounter(Integer.toString(p)).getValue();
+      if (size == 0) continue;
+
+      Path part = new Path(rangedPath, String.format("part-r-%05d", p));
+      Path target = new Path(outputPath, part.getName());
+
+      if (size <= remaining) {
+        fs.rename(part, target);
+        remaining -= size;
+        continue;
+      }
+
+      LineReader in = new LineReader(fs.open(part), conf);
+      FSDataOutputStream out = fs.create(target);
+      try {
+        Text line = new Text();
+        for (; remaining > 0 && in.readLine(line) > 0; remaining--) {
+          out.write(line.getBytes(), 0, line.getLength());
+          out.write('\n');
+        }
+      } finally {
+        in.close();
+        out.close();
+      }
+    }
+
+    fs.create(new Path(outputPath, "_SUCCESS")).close();
+    fs.delete(rangedPath, true);
+  }
+
+  // Same check FileOutputFormat.checkOutputSpecs makes for a job's output
+  private static void checkOutputDoesNotExist(Configuration conf, Path outputPath) throws IOException {
+    if (outputPath.getFileSystem(conf).exists(outputPath)) {
+      throw new FileAlreadyExistsException("Output directory " + outputPath + " already exists");
+    }
+  }
+
+  // (count, pageId) packed so that comparing the longs compares like Pair<Integer, Integer>
+  public static long pack(int count, int pageId) {
+    return ((long) count << 32) | ((pageId ^ Integer.MIN_VALUE) & 0xffffffffL);
+  }
+
+  // With -D intermediate=sequence, job-to-job output is written as block
+  // compressed SequenceFiles and read back as Writables instead of text.
+  public static void setIntermediateOutput(Job job) {
+    if (!"sequence".equals(job.getConfiguration().get("intermediate", "text"))) return;
+
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+  }
+
+  public static void setIntermediateInput(Job job) {
+    if ("sequence".equals(job.getConfiguration().get("intermediate", "text"))) {
+      job.setInputFormatClass(SequenceFileInputFormat.class);
+    } else {
+      job.setInputFormatClass(KeyValueTextInputFormat.class);
+    }
+  }
+
+  // Counts and page ids arrive as Text from KeyValueTextInputFormat or as
+  // IntWritable from a SequenceFile intermediate.
+  public static int intValue(Writable value) {
+    if (value instanceof IntWritable) return ((IntWritable) value).get();
+    return Integer.parseInt(value.toString());
+  }
+
+  // Link mappers tally the lines they could not parse, the edges they read
+  // and the edges pointing back at their own page here. A malformed line is
+  // skipped whole instead of failing the task.
+  private static final String LINK_COUNTERS = "Link Lines";
+
+  static void countLinks(TaskInputOutputContext<?, ?, ?, ?> context, long malformed, long edges, long selfLinks) {
+    context.getCounter(LINK_COUNTERS, "Malformed lines").increment(malformed);
+    context.getCounter(LINK_COUNTERS, "Edges").increment(edges);
+    context.getCounter(LINK_COUNTERS, "Self links").increment(selfLinks);
+  }
+
+  public static class LinkCountMap extends TimedMapper<Object, Text, IntWritable, IntWritable> {
+    private final LinkLineParser parser = new LinkLineParser();
+    private final IntWritable linkId = new IntWritable();
+    private final IntWritable one = new IntWritable(1);
+    private DistinctCounter distinct;
+    private long malformed;
+    private long edges;
+    private long selfLinks;
+
     @Override
-    public void map(Object key, Text line, Context ctxt) throws IOException, InterruptedException {
-      String[] input = line.toString().split(":");
+    protected void setup(Context ctxt) {
+      if (ctxt.getConfiguration().getBoolean("distinct", false)) {
+        this.distinct = new DistinctCounter();
+      }
+    }
 
-      Integer pageId = Integer.parseInt(input[0].replace(':', ' ').trim());
-      String[] pageLinks = input[1].split(" ");
+    @Override
+    public void map(Object key, Text line, Context ctxt) throws IOException, InterruptedException {
+      int pageId;
+      try {
+        pageId = parser.parse(line);
+      } catch (NumberFormatException e) {
+        malformed++;
+        return;
+      }
 
       // Flip the format upside down so that each *linked to*
       // page has a corresponding page that *links* to it.
@@ -107,15 +513,56 @@ public class TopPopularLinks extends Configured implements Tool {
       // This method completely excludes orphaned links but since
       // this is a popularity contest we don't care, and even better,
       // it makes the reducer dataset smaller
-      for (String linkIdStr : pageLinks) {
-        if (linkIdStr.trim().isEmpty()) continue;
-        Integer linkId = Integer.parseInt(linkIdStr.trim());
-        ctxt.write(new IntWritable(linkId), new IntWritable(1));
+      for (int i = 0; i < parser.size(); i++) {
+        linkId.set(parser.link(i));
+        ctxt.write(linkId, one);
+        if (distinct != null) distinct.add(linkId.get());
+        if (linkId.get() == pageId) selfLinks++;
+      }
+      edges += parser.size();
+    }
+
+    @Override
+    protected void cleanup(Context ctxt) throws IOException {
+      countLinks(ctxt, malformed, edges, selfLinks);
+      if (distinct != null) distinct.save(distinctPath(ctxt), ctxt);
+    }
+  }
+
+  // Same records as LinkCountMap, read from the binary graph written by LinkGraph
+  public static class LinkListCountMap extends TimedMapper<IntWritable, LinkListWritable, IntWritable, IntWritable> {
+    private final IntWritable linkId = new IntWritable();
+    private final IntWritable one = new IntWritable(1);
+    private DistinctCounter distinct;
+    private long edges;
+    private long selfLinks;
+
+    @Override
+    protected void setup(Context ctxt) {
+      if (ctxt.getConfiguration().getBoolean("distinct", false)) {
+        this.distinct = new DistinctCounter();
+      }
+    }
+
+    @Override
+    public void map(IntWritable pageId, LinkListWritable links, Context ctxt) throws IOException, InterruptedException {
+      for (int i = 0; i < links.size(); i++) {
+        linkId.set(links.get(i));
+        ctxt.write(linkId, one);
+        if (distinct != null) distinct.add(links.get(i));
+        if (links.get(i) == pageId.get()) selfLinks++;
       }
+      edges += links.size();
+    }
+
+    @Override
+    protected void cleanup(Context ctxt) throws IOException {
+      countLinks(ctxt, 0, edges, selfLinks);
+      if (distinct != null) distinct.save(distinctPath(ctxt), ctxt);
     }
   }
 
-  public static class LinkCountReduce extends Reducer<IntWritable, IntWritable, IntWritable, IntWritable> {
+  public static class LinkCountReduce extends TimedReducer<IntWritable, IntWritable, IntWritable, IntWritable> {
     // we simply need to aggregate the number of counts
     // this is more of a map than a reduce.. the mapper already reduced
     // by excluding orphaned pages
@@ -131,70 +578,823 @@ public class TopPopularLinks extends Configured implements Tool {
     }
   }
 
-  public static class TopLinksMap extends Mapper<Text, Text, NullWritable, IntArrayWritable> {
+  // LinkCountReduce for -D partition=skew. A heavy page only has a partial
+  // count here, so it goes to the side output for the driver.
+  public static class SkewLinkCountReduce extends TimedReducer<IntWritable, IntWritable, IntWritable, IntWritable> {
+    private Set<Object> heavy;
+    private MultipleOutputs<IntWritable, IntWritable> heavyOut;
+
+    @Override
+    protected void setup(Context ctxt) throws IOException, InterruptedException {
+      heavy = SkewPartitioner.readHeavyKeys(ctxt.getConfiguration());
+      heavyOut = new MultipleOutputs<IntWritable, IntWritable>(ctxt);
+    }
+
+    @Override
+    public void reduce(IntWritable key, Iterable<IntWritable> values, Context ctxt) throws IOException, InterruptedException {
+      int linkBackCount = 0;
+      for (IntWritable linkId : values) {
+        linkBackCount += linkId.get();
+      }
+
+      if (heavy.contains(key)) {
+        heavyOut.write(SkewPartitioner.HEAVY_OUTPUT, key, new IntWritable(linkBackCount));
+      } else {
+        ctxt.write(key, new IntWritable(linkBackCount));
+      }
+    }
+
+    @Override
+    protected void cleanup(Context ctxt) throws IOException, InterruptedException {
+      heavyOut.close();
+    }
+  }
+
+  // Top N selectors tally the entries they took in and pushed out again here
+  private static final String TOP_N_COUNTERS = "Top N";
+
+  static void countTopN(TaskInputOutputContext<?, ?, ?, ?> context, long insertions, long evictions) {
+    context.getCounter(TOP_N_COUNTERS, "Insertions").increment(insertions);
+    context.getCounter(TOP_N_COUNTERS, "Evictions").increment(evictions);
+  }
+
+  public static class TopLinksMap extends TimedMapper<Writable, Writable, NullWritable, IntIntPairWritable> {
     Integer N;
-    private TreeSet<Pair<Integer, Integer>> rankMap = new TreeSet<Pair<Integer, Integer>>();
+    private TopNIds rankMap;
 
     @Override
     protected void setup(Context context) throws IOException,InterruptedException {
         Configuration conf = context.getConfiguration();
         this.N = conf.getInt("N", 10);
+        this.rankMap = new TopNIds(this.N);
     }
 
     @Override
-    public void map(Text key, Text value, Context ctxt) throws IOException, InterruptedException {
-      Integer count = Integer.parseInt(value.toString());
-      Integer pageId = Integer.parseInt(key.toString());
+    public void map(Writable key, Writable value, Context ctxt) throws IOException, InterruptedException {
+      int count = intValue(value);
+      if (rankMap.rejects(count)) return;
 
-      // treeset will sort on Key (pair[0]) so count *then* pageId
-      rankMap.add(new Pair<Integer, Integer>(count, pageId));
+      // the heap orders on count *then* pageId
+      rankMap.offer(count, intValue(key));
+    }
 
-      if (rankMap.size() > this.N) {
-        rankMap.remove(rankMap.first());
+    @Override
+    protected void cleanup(Context ctxt) throws IOException, InterruptedException {
+      countTopN(ctxt, rankMap.insertions(), rankMap.evictions());
+      rankMap.sortDescending();
+      IntIntPairWritable entry = new IntIntPairWritable();
+      for (int i = rankMap.size() - 1; i >= 0; i--) {
+        entry.set(rankMap.count(i), rankMap.id(i));
+        ctxt.write(NullWritable.get(), entry);
       }
     }
+  }
+
+  // TopLinksMap for the ranged pipeline, keyed by the packed (count, pageId)
+  public static class RangeTopLinksMap extends TimedMapper<Writable, Writable, LongWritable, NullWritable> {
+    Integer N;
+    private TopNIds rankMap;
+
+    @Override
+    protected void setup(Context context) throws IOException,InterruptedException {
+      Configuration conf = context.getConfiguration();
+      this.N = conf.getInt("N", 10);
+      this.rankMap = new TopNIds(this.N);
+    }
+
+    @Override
+    public void map(Writable key, Writable value, Context ctxt) throws IOException, InterruptedException {
+      rankMap.offer(intValue(value), intValue(key));
+    }
 
     @Override
     protected void cleanup(Context ctxt) throws IOException, InterruptedException {
-      for (Pair<Integer, Integer> itm : rankMap) {
-        Integer[] entry = { itm.first, itm.second };
-        IntArrayWritable entryArr = new IntArrayWritable(entry);
-        ctxt.write(NullWritable.get(), entryArr);
+      countTopN(ctxt, rankMap.insertions(), rankMap.evictions());
+      LongWritable entry = new LongWritable();
+      for (int i = 0; i < rankMap.size(); i++) {
+        entry.set(pack(rankMap.count(i), rankMap.id(i)));
+        ctxt.write(entry, NullWritable.get());
       }
     }
   }
 
-  public static class TopLinksReduce extends Reducer<NullWritable, IntArrayWritable, IntWritable, IntWritable> {
+  // Keys arrive in decreasing order, so the first N are this range's top N
+  public static class RangeTopLinksReduce extends TimedReducer<LongWritable, NullWritable, IntWritable, IntWritable> {
     Integer N;
-    private TreeSet<Pair<Integer, Integer>> rankMap = new TreeSet<Pair<Integer, Integer>>();
+    private int written;
+    private Counter partitionSize;
 
     @Override
     protected void setup(Context context) throws IOException,InterruptedException {
       Configuration conf = context.getConfiguration();
       this.N = conf.getInt("N", 10);
+
+      String partition = Integer.toString(context.getTaskAttemptID().getTaskID().getId());
+      this.partitionSize = context.getCounter(PARTITION_COUNTERS, partition);
     }
 
     @Override
-    public void reduce(NullWritable key, Iterable<IntArrayWritable> values, Context ctxt) throws IOException, InterruptedException {
-      for (IntArrayWritable val : values) {
-        IntWritable[] rankEntry = (IntWritable[]) val.toArray();
+    public void reduce(LongWritable key, Iterable<NullWritable> values, Context ctxt) throws IOException, InterruptedException {
+      if (written >= this.N) return;
+
+      int count = (int) (key.get() >> 32);
+      int pageId = (int) key.get() ^ Integer.MIN_VALUE;
+      ctxt.write(new IntWritable(pageId), new IntWritable(count));
+
+      written++;
+      partitionSize.increment(1);
+    }
+  }
+
+  public static class TopLinksReduce extends TimedReducer<NullWritable, IntIntPairWritable, IntWritable, IntWritable> {
+    Integer N;
+    private TopNIds rankMap;
 
-        Integer linkBackCount = rankEntry[0].get();
-        Integer pageId = rankEntry[1].get();
+    @Override
+    protected void setup(Context context) throws IOException,InterruptedException {
+      Configuration conf = context.getConfiguration();
+      this.N = conf.getInt("N", 10);
+      this.rankMap = new TopNIds(this.N);
+    }
 
+    @Override
+    public void reduce(NullWritable key, Iterable<IntIntPairWritable> values, Context ctxt) throws IOException, InterruptedException {
+      for (IntIntPairWritable val : values) {
         // now that we have a shorter list we want to sort by pageId
-        rankMap.add(new Pair<Integer, Integer>(linkBackCount, pageId));
+        rankMap.offer(val.first(), val.second());
+      }
+
+      rankMap.sortDescending();
+      for (int i = 0; i < rankMap.size(); i++) {
+        IntWritable count = new IntWritable(rankMap.count(i));
+        IntWritable pageId = new IntWritable(rankMap.id(i));
+        ctxt.write(pageId, count);
+      }
+    }
+
+    @Override
+    protected void cleanup(Context ctxt) {
+      countTopN(ctxt, rankMap.insertions(), rankMap.evictions());
+    }
+  }
+}
+
+// HyperLogLog distinct-value counter with 2^14 one-byte registers, for a
+// standard error of about 0.8%. Every map task saves its registers to a
+// file of its own under a shared directory and the driver takes the
+// register-wise maximum over all of them. A retried or speculative attempt
+// can only repeat the same maxima, so it never inflates the estimate, and
+// the short file of an attempt killed mid-write is skipped.
+class DistinctCounter {
+  private static final int P = 14;
+  private static final int M = 1 << P;
+
+  private final byte[] registers = new byte[M];
+
+  // FNV-1a over the bytes, finished with the 64-bit mix below
+  public void add(byte[] bytes, int length) {
+    long h = 0xcbf29ce484222325L;
+    for (int k = 0; k < length; k++) {
+      h ^= bytes[k] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    addHash(mix(h));
+  }
+
+  public void add(int value) {
+    addHash(mix(value));
+  }
+
+  public long estimate() {
+    double sum = 0.0;
+    int zeros = 0;
+    for (int i = 0; i < M; i++) {
+      sum += 1.0 / (1L << registers[i]);
+      if (registers[i] == 0) zeros++;
+    }
+
+    double estimate = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+    // linear counting is more accurate while many registers are empty
+    if (estimate <= 2.5 * M && zeros > 0) {
+      estimate = M * Math.log((double) M / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  public void save(Path dir, TaskAttemptContext context) throws IOException {
+    Path file = new Path(dir, context.getTaskAttemptID().toString());
+    FSDataOutputStream out = file.getFileSystem(context.getConfiguration()).create(file, true);
+    try {
+      out.write(registers);
+    } finally {
+      out.close();
+    }
+  }
 
-        if (rankMap.size() > this.N) {
-          rankMap.remove(rankMap.first());
+  public static DistinctCounter load(Path dir, Configuration conf) throws IOException {
+    DistinctCounter counter = new DistinctCounter();
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) return counter;
+
+    byte[] other = new byte[M];
+    for (FileStatus file : fs.listStatus(dir)) {
+      // an attempt killed while writing leaves a short file
+      if (file.getLen() != M) continue;
+      FSDataInputStream in = fs.open(file.getPath());
+      try {
+        in.readFully(other);
+      } finally {
+        in.close();
+      }
+      for (int i = 0; i < M; i++) {
+        if (other[i] > counter.registers[i]) counter.registers[i] = other[i];
+      }
+    }
+    return counter;
+  }
+
+  private void addHash(long h) {
+    int i = (int) (h >>> (64 - P));
+    // position of the first 1 bit after the index bits, capped at 64 - P + 1
+    byte rank = (byte) (Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1);
+    if (rank > registers[i]) registers[i] = rank;
+  }
+
+  // MurmurHash3 fmix64
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
+
+// Partitioner for -D partition=skew. The driver samples the input before
+// the job and lists the keys that would overload a single reducer in a
+// SequenceFile; records for those keys are dealt round-robin over
+// skew.spread consecutive reducers, and every other key is placed exactly
+// as HashPartitioner would place it. Reducers send their partial results
+// for the heavy keys to the "heavy" side output, which the driver merges
+// once the job is done.
+class SkewPartitioner<K, V> extends Partitioner<K, V> implements Configurable {
+  public static final String HEAVY_OUTPUT = "heavy";
+  private static final String SKEW_FILE = "skew.file";
+
+  private Configuration conf;
+  private Set<Object> heavy;
+  private int spread;
+  private int next;
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.spread = conf.getInt("skew.spread", 4);
+    try {
+      this.heavy = readHeavyKeys(conf);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Can't read heavy keys file", e);
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public int getPartition(K key, V value, int numPartitions) {
+    int partition = (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    if (!heavy.contains(key)) return partition;
+
+    next = (next + 1) % Math.min(spread, numPartitions);
+    return (partition + next) % numPartitions;
+  }
+
+  // Keys holding more than half of one reducer's fair share of the
+  // sample are heavy. They are written to file, and the job is switched
+  // to this partitioner with a SequenceFile side output for their partial
+  // values. Returns the number of heavy keys.
+  public static int configure(Job job, Path file, Map<? extends Writable, Integer> samples) throws IOException {
+    Configuration conf = job.getConfiguration();
+    long total = 0;
+    for (int count : samples.values()) {
+      total += count;
+    }
+
+    int heavy = 0;
+    SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(file),
+        SequenceFile.Writer.keyClass(job.getMapOutputKeyClass()),
+        SequenceFile.Writer.valueClass(NullWritable.class));
+    try {
+      for (Map.Entry<? extends Writable, Integer> entry : samples.entrySet()) {
+        if (2L * job.getNumReduceTasks() * entry.getValue() <= total) continue;
+
+        writer.append(entry.getKey(), NullWritable.get());
+        heavy++;
+      }
+    } finally {
+      writer.close();
+    }
+
+    conf.set(SKEW_FILE, file.toString());
+    job.setPartitionerClass(SkewPartitioner.class);
+    MultipleOutputs.addNamedOutput(job, HEAVY_OUTPUT, SequenceFileOutputFormat.class, job.getMapOutputKeyClass(), IntWritable.class);
+    return heavy;
+  }
+
+  public static Set<Object> readHeavyKeys(Configuration conf) throws IOException {
+    Set<Object> keys = new HashSet<Object>();
+    String file = conf.get(SKEW_FILE);
+    if (file == null) return keys;
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(new Path(file)));
+    try {
+      Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+      while (reader.next(key)) {
+        keys.add(key);
+        key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+      }
+    } finally {
+      reader.close();
+    }
+    return keys;
+  }
+
+  // The first records of every input split, like InputSampler.SplitSampler.
+  // Values are copied since record readers reuse them.
+  @SuppressWarnings("unchecked")
+  public static List<Writable> sampleValues(Job job, int samples) throws Exception {
+    Configuration conf = job.getConfiguration();
+    InputFormat<Writable, Writable> inputFormat = (InputFormat<Writable, Writable>)
+        ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    int perSplit = samples / Math.max(splits.size(), 1) + 1;
+
+    List<Writable> values = new ArrayList<Writable>();
+    for (InputSplit split : splits) {
+      TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+      RecordReader<Writable, Writable> reader = inputFormat.createRecordReader(split, context);
+      try {
+        reader.initialize(split, context);
+        for (int i = 0; i < perSplit && reader.nextKeyValue(); i++) {
+          values.add(WritableUtils.clone(reader.getCurrentValue(), conf));
         }
+      } finally {
+        reader.close();
       }
+    }
+    return values;
+  }
 
-      for (Pair<Integer, Integer> rankEntry : rankMap.descendingSet()) {
-        IntWritable count = new IntWritable(rankEntry.first);
-        IntWritable pageId = new IntWritable(rankEntry.second);
-        ctxt.write(pageId, count);
+  // Folds the partial values written for the heavy keys back together,
+  // by sum or by bitwise or, and deletes the side files.
+  @SuppressWarnings("unchecked")
+  public static <K extends Writable & Comparable<? super K>> TreeMap<K, Integer> mergeHeavyOutput(Path outputPath, Configuration conf, boolean or) throws IOException {
+    FileSystem fs = outputPath.getFileSystem(conf);
+    TreeMap<K, Integer> merged = new TreeMap<K, Integer>();
+
+    for (FileStatus status : fs.listStatus(outputPath)) {
+      if (!status.getPath().getName().startsWith(HEAVY_OUTPUT + "-")) continue;
+
+      SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+      try {
+        K key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        IntWritable value = new IntWritable();
+        while (reader.next(key, value)) {
+          Integer previous = merged.get(key);
+          int v = value.get();
+          if (previous != null) v = or ? previous | v : previous + v;
+
+          merged.put(key, v);
+          key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        }
+      } finally {
+        reader.close();
+      }
+      fs.delete(status.getPath(), false);
+    }
+    return merged;
+  }
+}
+
+// Bounded top-N selection over (count, id) pairs, ordered the same way as
+// TreeSet<Pair<Integer, Integer>>. The entries sit in a min-heap of two
+// int arrays, so nothing is boxed and once the heap is full a record that
+// cannot make the cut is rejected by comparing its count against the root.
+class TopNIds {
+  private final int[] counts;
+  private final int[] ids;
+  private int size;
+  private long insertions;
+
+  public TopNIds(int n) {
+    this.counts = new int[n];
+    this.ids = new int[n];
+  }
+
+  // true when (count, anything) cannot displace the current minimum
+  public boolean rejects(int count) {
+    return size == counts.length && (size == 0 || count < counts[0]);
+  }
+
+  public void offer(int count, int id) {
+    if (size < counts.length) {
+      counts[size] = count;
+      ids[size] = id;
+      siftUp(size++);
+      insertions++;
+    } else if (size > 0 && less(counts[0], ids[0], count, id)) {
+      counts[0] = count;
+      ids[0] = id;
+      siftDown(0, size);
+      insertions++;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // entries that made it into the selector, and those of them pushed out again
+  public long insertions() {
+    return insertions;
+  }
+
+  public long evictions() {
+    return insertions - size;
+  }
+
+  public int count(int i) {
+    return counts[i];
+  }
+
+  public int id(int i) {
+    return ids[i];
+  }
+
+  // Heap-sorts the entries in place so that count(0)/id(0) is the largest;
+  // the selector is no longer usable for offer() afterwards.
+  public void sortDescending() {
+    for (int end = size - 1; end > 0; end--) {
+      swap(0, end);
+      siftDown(0, end);
+    }
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!less(counts[i], ids[i], counts[parent], ids[parent])) break;
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i, int end) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= end) break;
+      if (child + 1 < end && less(counts[child + 1], ids[child + 1], counts[child], ids[child])) child++;
+      if (!less(counts[child], ids[child], counts[i], ids[i])) break;
+      swap(i, child);
+      i = child;
+    }
+  }
+
+  private static boolean less(int c1, int id1, int c2, int id2) {
+    return c1 < c2 || (c1 == c2 && id1 < id2);
+  }
+
+  private void swap(int i, int j) {
+    int count = counts[i];
+    counts[i] = counts[j];
+    counts[j] = count;
+    int id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+  }
+}
+
+// Mapper that times its own setup, map loop and cleanup and adds the
+// nanoseconds to the "<stage> setup/map/cleanup" counters of the
+// PHASE_COUNTERS group, where they show up in the job history next to the
+// built-in counters. The map phase runs from the first record read to the
+// last map() returning, so it includes reading input and collecting output
+// but not the final sort and spill. Nothing is timed per record.
+abstract class TimedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  public static final String PHASE_COUNTERS = "Phase Time (ns)";
+
+  @Override
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long mapStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKeyValue()) {
+        map(context.getCurrentKey(), context.getCurrentValue(), context);
       }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
+    }
+    long end = System.nanoTime();
+
+    String stage = getClass().getSimpleName();
+    context.getCounter(PHASE_COUNTERS, stage + " setup").increment(mapStart - start);
+    context.getCounter(PHASE_COUNTERS, stage + " map").increment(cleanupStart - mapStart);
+    context.getCounter(PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
+
+// Reducer counterpart of TimedMapper. The reduce phase covers iterating the
+// merged, sorted input, so it includes the final merge and deserializing
+// the values. Combiners are timed the same way, inside the map task, and
+// count under "<stage> combiner setup/reduce/cleanup" instead.
+abstract class TimedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+  @Override
+  @SuppressWarnings("unchecked")
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    long reduceStart = System.nanoTime();
+    long cleanupStart;
+    try {
+      while (context.nextKey()) {
+        reduce(context.getCurrentKey(), context.getValues(), context);
+        // as in Reducer.run(), a mark()ed value iterator has to be reset per key
+        Iterator<VALUEIN> values = context.getValues().iterator();
+        if (values instanceof ReduceContext.ValueIterator) {
+          ((ReduceContext.ValueIterator<VALUEIN>) values).resetBackupStore();
+        }
+      }
+    } finally {
+      cleanupStart = System.nanoTime();
+      cleanup(context);
+    }
+    long end = System.nanoTime();
+
+    String stage = getClass().getSimpleName();
+    // a combiner runs inside the map task; keep its time apart from the reduce side
+    if (context.getTaskAttemptID().getTaskType() == TaskType.MAP) stage += " combiner";
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " setup").increment(reduceStart - start);
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " reduce").increment(cleanupStart - reduceStart);
+    context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+  }
+}
+
+// -D engine=local-parallel runs every job of the tool inside this JVM on
+// the local job runner and the local filesystem, without submitting to
+// YARN. Each job gets engine.threads concurrent map and reduce tasks, one
+// per core by default. The input is split into at least one piece per
+// thread, and jobs that don't pin their reducer count get one reducer per
+// thread, so every stage runs in parallel.
+class LocalParallelEngine {
+  private static final long MIN_SPLIT = 1 << 20;
+
+  public static void configure(Configuration conf, Path input) throws IOException {
+    if (!"local-parallel".equals(conf.get("engine"))) return;
+
+    int threads = conf.getInt("engine.threads", Runtime.getRuntime().availableProcessors());
+    conf.set("mapreduce.framework.name", "local");
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+    conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+
+    // an explicit -D mapreduce.job.reduces still wins
+    String[] sources = conf.getPropertySources(MRJobConfig.NUM_REDUCES);
+    if (sources == null || sources[sources.length - 1].endsWith("-default.xml")) {
+      conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+    }
+
+    long size = input.getFileSystem(conf).getContentSummary(input).getLength();
+    conf.setLong(FileInputFormat.SPLIT_MAXSIZE, Math.max(MIN_SPLIT, (size + threads - 1) / threads));
+  }
+
+  // The tools keep their job-to-job data under /mp2 on the cluster
+  // filesystem. Once configure() has switched to the local filesystem that
+  // would be the root of the local disk, so the same layout moves under
+  // hadoop.tmp.dir instead.
+  public static Path scratch(Configuration conf, Path path) {
+    if (!"local-parallel".equals(conf.get("engine"))) return path;
+    return new Path(conf.get("hadoop.tmp.dir"), path.toUri().getPath().substring(1));
+  }
+}
+
+// Scans a "page: l1 l2 ..." link line directly over the Text bytes and
+// hands back page ids as ints, without split(), regexes or a String per
+// link. Ids are separated by any run of whitespace.
+class LinkLineParser {
+  private byte[] bytes;
+  private int pos;
+  private int end;
+  private int[] links = new int[64];
+  private int size;
+
+  // Positions the parser on a new line and returns its page id
+  public int reset(Text line) {
+    this.bytes = line.getBytes();
+    this.end = line.getLength();
+    this.pos = 0;
+
+    int colon = 0;
+    while (colon < end && bytes[colon] != ':') colon++;
+    if (colon == end) throw new NumberFormatException("missing ':' in link line: " + line);
+
+    int pageEnd = this.end;
+    this.end = colon;
+    skipWhitespace();
+    int pageId = parseInt();
+    skipWhitespace();
+    if (pos != colon) throw new NumberFormatException("bad page id in link line: " + line);
+
+    this.pos = colon + 1;
+    this.end = pageEnd;
+    return pageId;
+  }
+
+  // Parses the whole line up front and returns its page id; the targets
+  // are then size() and link(i). A malformed line throws before any of it
+  // is handed out.
+  public int parse(Text line) {
+    int pageId = reset(line);
+    this.size = 0;
+    while (hasNext()) {
+      if (size == links.length) links = Arrays.copyOf(links, size * 2);
+      links[size++] = next();
+    }
+    return pageId;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int link(int i) {
+    return links[i];
+  }
+
+  public boolean hasNext() {
+    skipWhitespace();
+    return pos < end;
+  }
+
+  public int next() {
+    return parseInt();
+  }
+
+  private void skipWhitespace() {
+    while (pos < end && bytes[pos] >= 0 && bytes[pos] <= ' ') pos++;
+  }
+
+  private int parseInt() {
+    boolean negative = pos < end && bytes[pos] == '-';
+    if (negative) pos++;
+
+    int start = pos;
+    long value = 0;
+    while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+      value = value * 10 + (bytes[pos++] - '0');
+      if (value > Integer.MAX_VALUE + 1L) break;
+    }
+
+    if (pos == start || (pos < end && (bytes[pos] < 0 || bytes[pos] > ' ')) || value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+      throw new NumberFormatException("bad id in link line at byte " + start);
+    }
+    return (int) (negative ? -value : value);
+  }
+}
+
+// Out-links of one page in the binary link graph written by LinkGraph.
+// Targets are kept sorted and serialized as a varint count followed by
+// varint deltas, so mappers get ints back without any string parsing.
+class LinkListWritable implements Writable {
+  private int[] links = new int[16];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  public int get(int i) {
+    return links[i];
+  }
+
+  public void set(int[] links, int size) {
+    ensureCapacity(size);
+    System.arraycopy(links, 0, this.links, 0, size);
+    Arrays.sort(this.links, 0, size);
+    this.size = size;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    int prev = 0;
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVInt(out, links[i] - prev);
+      prev = links[i];
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int n = WritableUtils.readVInt(in);
+    ensureCapacity(n);
+    int prev = 0;
+    for (int i = 0; i < n; i++) {
+      prev += WritableUtils.readVInt(in);
+      links[i] = prev;
+    }
+    size = n;
+  }
+
+  private void ensureCapacity(int n) {
+    if (links.length < n) {
+      links = new int[Math.max(n, links.length * 2)];
+    }
+  }
+}
+
+// (int, int) record for the top-N funnels, such as (count, pageId). It is
+// two fixed-width ints with no array header or per-element class names,
+// and set() lets one instance be reused for every record. The registered
+// comparator orders the serialized bytes like Pair<Integer, Integer>.
+class IntIntPairWritable implements WritableComparable<IntIntPairWritable> {
+  private int first;
+  private int second;
+
+  static {
+    WritableComparator.define(IntIntPairWritable.class, new Comparator());
+  }
+
+  public IntIntPairWritable() {
+  }
+
+  public IntIntPairWritable(int first, int second) {
+    set(first, second);
+  }
+
+  public void set(int first, int second) {
+    this.first = first;
+    this.second = second;
+  }
+
+  public int first() {
+    return first;
+  }
+
+  public int second() {
+    return second;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(first);
+    out.writeInt(second);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    first = in.readInt();
+    second = in.readInt();
+  }
+
+  @Override
+  public int compareTo(IntIntPairWritable o) {
+    int cmp = Integer.compare(first, o.first);
+    return cmp != 0 ? cmp : Integer.compare(second, o.second);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof IntIntPairWritable)) return false;
+    IntIntPairWritable other = (IntIntPairWritable) o;
+    return first == other.first && second == other.second;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * first + second;
+  }
+
+  @Override
+  public String toString() {
+    return first + "\t" + second;
+  }
+
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(IntIntPairWritable.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+      return cmp != 0 ? cmp : Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
     }
   }
 }
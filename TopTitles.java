@@ -3,29 +3,61 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
+import org.apache.hadoop.mapred.LocalJobRunner;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.ReduceContext;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.KeyValueTextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
-import java.util.TreeSet;
+import java.util.Map;
 
 // >>> Don't Change
 public class TopTitles extends Configured implements Tool {
@@ -38,29 +70,43 @@ public class TopTitles extends Configured implements Tool {
     @Override
     public int run(String[] args) throws Exception {
         Configuration conf = this.getConf();
+        LocalParallelEngine.configure(conf, new Path(args[0]));
         FileSystem fs = FileSystem.get(conf);
-        Path tmpPath = new Path("/mp2/tmp");
+        Path tmpPath = LocalParallelEngine.scratch(conf, new Path("/mp2/tmp"));
         fs.delete(tmpPath, true);
 
+        if ("fused".equals(conf.get("pipeline", "twojob"))) {
+            return runFused(conf, tmpPath, args);
+        }
+        if ("approx".equals(conf.get("pipeline", "twojob"))) {
+            return runApprox(conf, args);
+        }
+
         Job jobA = Job.getInstance(conf, "Title Count");
         jobA.setOutputKeyClass(Text.class);
         jobA.setOutputValueClass(IntWritable.class);
 
         jobA.setMapperClass(TitleCountMap.class);
         jobA.setReducerClass(TitleCountReduce.class);
+        if (!"inmapper".equals(conf.get("combine", "combiner"))) {
+            jobA.setCombinerClass(TitleCountReduce.class);
+        }
 
         FileInputFormat.setInputPaths(jobA, new Path(args[0]));
         FileOutputFormat.setOutputPath(jobA, tmpPath);
+        SideFiles.addCacheFiles(jobA, "stopwords", "delimiters");
+        setIntermediateOutput(jobA);
 
         jobA.setJarByClass(TopTitles.class);
-        jobA.waitForCompletion(true);
+        runJob(jobA);
+        reportDistinct(jobA);
 
         Job jobB = Job.getInstance(conf, "Top Titles");
         jobB.setOutputKeyClass(Text.class);
         jobB.setOutputValueClass(IntWritable.class);
 
         jobB.setMapOutputKeyClass(NullWritable.class);
-        jobB.setMapOutputValueClass(TextArrayWritable.class);
+        jobB.setMapOutputValueClass(IntTextPairWritable.class);
 
         jobB.setMapperClass(TopTitlesMap.class);
         jobB.setReducerClass(TopTitlesReduce.class);
@@ -69,11 +115,11 @@ public class TopTitles extends Configured implements Tool {
         FileInputFormat.setInputPaths(jobB, tmpPath);
         FileOutputFormat.setOutputPath(jobB, new Path(args[1]));
 
-        jobB.setInputFormatClass(KeyValueTextInputFormat.class);
+        setIntermediateInput(jobB);
         jobB.setOutputFormatClass(TextOutputFormat.class);
 
         jobB.setJarByClass(TopTitles.class);
-        return jobB.waitForCompletion(true) ? 0 : 1;
+        return runJob(jobB) ? 0 : 1;
     }
 
     public static String readHDFSFile(String path, Configuration conf) throws IOException{
@@ -107,39 +153,380 @@ public class TopTitles extends Configured implements Tool {
     }
 // <<< Don't Change
 
-    public static class TitleCountMap extends Mapper<Object, Text, Text, IntWritable> {
-        List<String> stopWords;
-        String delimiters;
+    // Jobs this run completed, in order, with their wall times, so that a
+    // caller such as bench/JobBench can read their counters once run() returns
+    private final List<Job> jobs = new ArrayList<Job>();
+    private final List<Long> jobMillis = new ArrayList<Long>();
+
+    public List<Job> getJobs() {
+        return jobs;
+    }
+
+    public List<Long> getJobMillis() {
+        return jobMillis;
+    }
+
+    private boolean runJob(Job job) throws Exception {
+        long start = System.currentTimeMillis();
+        boolean success = job.waitForCompletion(true);
+        jobs.add(job);
+        jobMillis.add(System.currentTimeMillis() - start);
+        return success;
+    }
+
+
+    // With -D intermediate=sequence, job-to-job output is written as block
+    // compressed SequenceFiles and read back as Writables instead of text.
+    public static void setIntermediateOutput(Job job) {
+        if (!"sequence".equals(job.getConfiguration().get("intermediate", "text"))) return;
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+    }
+
+    public static void setIntermediateInput(Job job) {
+        if ("sequence".equals(job.getConfiguration().get("intermediate", "text"))) {
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+        } else {
+            job.setInputFormatClass(KeyValueTextInputFormat.class);
+        }
+    }
+
+    // Counts and page ids arrive as Text from KeyValueTextInputFormat or as
+    // IntWritable from a SequenceFile intermediate.
+    public static int intValue(Writable value) {
+        if (value instanceof IntWritable) return ((IntWritable) value).get();
+        return Integer.parseInt(value.toString());
+    }
+
+    public static final Log LOG = LogFactory.getLog(TopTitles.class);
+
+    // TitleCountMap saves its DistinctCounter registers in this hidden
+    // directory of its job's output, where input formats skip them
+    private static final String DISTINCT_DIR = "_distinct";
+
+    public static Path distinctPath(JobContext context) {
+        return new Path(FileOutputFormat.getOutputPath(context), DISTINCT_DIR);
+    }
+
+    // TitleTokenizer tallies tokens, stop words and the words it passes on here
+    private static final String TITLE_COUNTERS = "Title Words";
+
+    // Logs the distinct word estimate merged from the registers saved by
+    // the given TitleCountMap job and removes them. Off unless -D distinct=true.
+    public static void reportDistinct(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (!conf.getBoolean("distinct", false)) return;
+
+        Path dir = distinctPath(job);
+        LOG.info("Distinct words (estimated): " + DistinctCounter.load(dir, conf).estimate());
+        dir.getFileSystem(conf).delete(dir, true);
+    }
+
+    // Counts words and selects the top N in one job: every reducer keeps its
+    // own top N, so with a single reducer its output is the answer and with
+    // several the driver only has to merge reducers * N candidate lines.
+    private int runFused(Configuration conf, Path tmpPath, String[] args) throws Exception {
+        Job job = Job.getInstance(conf, "Top Titles");
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IntWritable.class);
+
+        job.setMapperClass(TitleCountMap.class);
+        job.setReducerClass(TopTitlesCountReduce.class);
+        if (!"inmapper".equals(conf.get("combine", "combiner"))) {
+            job.setCombinerClass(TitleCountReduce.class);
+        }
+
+        boolean merge = job.getNumReduceTasks() > 1;
+        Path outputPath = new Path(args[1]);
+        // the merged output is written by the driver, not through FileOutputFormat
+        if (merge) checkOutputDoesNotExist(conf, outputPath);
+
+        FileInputFormat.setInputPaths(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, merge ? tmpPath : outputPath);
+        SideFiles.addCacheFiles(job, "stopwords", "delimiters");
+
+        job.setJarByClass(TopTitles.class);
+        if (!runJob(job)) return 1;
+        reportDistinct(job);
+
+        if (merge) {
+            mergeTopTitles(conf, tmpPath, outputPath, conf.getInt("N", 10));
+        }
+        return 0;
+    }
+
+    // Approximate top N in one job: each mapper summarises its words in a
+    // Space-Saving sketch and ships only that, so the shuffle is one record
+    // per mapper. The single reducer merges the sketches and writes each
+    // word's estimated count followed by its maximum overestimate.
+    private int runApprox(Configuration conf, String[] args) throws Exception {
+        Job job = Job.getInstance(conf, "Top Titles");
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        job.setMapOutputKeyClass(NullWritable.class);
+        job.setMapOutputValueClass(SpaceSaving.class);
+
+        job.setMapperClass(TitleSketchMap.class);
+        job.setReducerClass(TopTitlesSketchReduce.class);
+        job.setNumReduceTasks(1);
+
+        FileInputFormat.setInputPaths(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        SideFiles.addCacheFiles(job, "stopwords", "delimiters");
+
+        job.setJarByClass(TopTitles.class);
+        return runJob(job) ? 0 : 1;
+    }
+
+    // sketch size for -D pipeline=approx, never smaller than N
+    public static int sketchCapacity(Configuration conf) {
+        return Math.max(conf.getInt("N", 10), conf.getInt("approx.capacity", 4096));
+    }
+
+    // Same check FileOutputFormat.checkOutputSpecs makes for a job's output
+    private static void checkOutputDoesNotExist(Configuration conf, Path outputPath) throws IOException {
+        if (outputPath.getFileSystem(conf).exists(outputPath)) {
+            throw new FileAlreadyExistsException("Output directory " + outputPath + " already exists");
+        }
+    }
+
+    private static void mergeTopTitles(Configuration conf, Path candidatesPath, Path outputPath, int n) throws IOException {
+        FileSystem fs = candidatesPath.getFileSystem(conf);
+        TopNWords top = new TopNWords(n);
+
+        for (FileStatus part : fs.listStatus(candidatesPath)) {
+            if (!part.getPath().getName().startsWith("part-")) continue;
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(part.getPath()), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab < 0) continue;
+
+                    int count = Integer.parseInt(line.substring(tab + 1));
+                    if (top.rejects(count)) continue;
+
+                    top.offer(count, line.substring(0, tab));
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        FileSystem outFs = outputPath.getFileSystem(conf);
+        Writer out = new OutputStreamWriter(outFs.create(new Path(outputPath, "part-r-00000"), false), "UTF-8");
+        try {
+            top.sortDescending();
+            for (int i = top.size() - 1; i >= 0; i--) {
+                out.write(top.word(i) + "\t" + top.count(i) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        outFs.create(new Path(outputPath, "_SUCCESS"), false).close();
+    }
+
+    // Splits a title line on the delimiters, lowercases and trims each token
+    // and hands the ones that are not stop words to emit(). The title mappers
+    // share it and only differ in what they do with a word.
+    public abstract static class TitleTokenizer<C extends TaskInputOutputContext<?, ?, ?, ?>> {
+        private final TitleFilter filter;
+        private final boolean byteTokenizer;
+        private final Text word = new Text();
+        private long tokens;
+        private long emitted;
+
+        public TitleTokenizer(C context) throws IOException {
+            TitleFilter filter = (TitleFilter) SideFiles.cached(context, "filter");
+            if (filter == null) {
+                filter = new TitleFilter(SideFiles.read(context, "stopwords"), SideFiles.read(context, "delimiters"));
+                SideFiles.cache(context, "filter", filter);
+            }
+            this.filter = filter;
+            this.byteTokenizer = "bytes".equals(context.getConfiguration().get("tokenizer", "string"));
+        }
+
+        protected abstract void emit(Text word, C context) throws IOException, InterruptedException;
+
+        public void tokenize(Text value, C context) throws IOException, InterruptedException {
+          if (this.byteTokenizer) {
+            tokenizeBytes(value, context);
+          } else {
+            tokenizeString(value.toString(), context);
+          }
+        }
+
+        private void tokenizeString(String line, C context) throws IOException, InterruptedException {
+          int start = -1;
+
+          for (int i = 0; i <= line.length(); i++) {
+            if (i < line.length() && !this.filter.isDelimiter(line.charAt(i))) {
+              if (start < 0) start = i;
+              continue;
+            }
+            if (start < 0) continue;
+
+            String title = line.substring(start, i).trim().toLowerCase();
+            start = -1;
+
+            this.tokens++;
+            if (!this.filter.isStopWord(title)) {
+              this.emitted++;
+              emit(new Text(title), context);
+            }
+          }
+        }
+
+        // Tokenizes the UTF-8 bytes of the record directly, lowercasing ASCII
+        // in place and emitting through the reused word instance. Only
+        // tokens containing multi-byte characters go through tokenizeString.
+        private void tokenizeBytes(Text value, C context) throws IOException, InterruptedException {
+          byte[] bytes = value.getBytes();
+          int length = value.getLength();
+          int start = -1;
+          boolean ascii = true;
+
+          for (int i = 0; i <= length; i++) {
+            if (i < length && (bytes[i] < 0 || !this.filter.isDelimiter((char) bytes[i]))) {
+              if (start < 0) {
+                start = i;
+                ascii = true;
+              }
+              if (bytes[i] < 0) {
+                ascii = false;
+              } else if (bytes[i] >= 'A' && bytes[i] <= 'Z') {
+                bytes[i] += 'a' - 'A';
+              }
+              continue;
+            }
+            if (start < 0) continue;
+
+            if (ascii) {
+              int end = i;
+              while (start < end && bytes[start] <= ' ') start++;
+              while (end > start && bytes[end - 1] <= ' ') end--;
+
+              this.tokens++;
+              if (!this.filter.isStopWord(bytes, start, end)) {
+                this.emitted++;
+                this.word.set(bytes, start, end - start);
+                emit(this.word, context);
+              }
+            } else {
+              tokenizeString(Text.decode(bytes, start, i - start), context);
+            }
+            start = -1;
+          }
+        }
+
+        // Adds this task's tallies to TITLE_COUNTERS; the stop words are the
+        // tokens that were not passed on
+        public void countTokens(C context) {
+            context.getCounter(TITLE_COUNTERS, "Tokens seen").increment(this.tokens);
+            context.getCounter(TITLE_COUNTERS, "Stop words filtered").increment(this.tokens - this.emitted);
+            context.getCounter(TITLE_COUNTERS, "Keys emitted").increment(this.emitted);
+        }
+    }
+
+    public static class TitleCountMap extends TimedMapper<Object, Text, Text, IntWritable> {
+        TitleTokenizer<Context> tokenizer;
+        WordCounts counts;
+        long countsBudget;
+        DistinctCounter distinct;
+
+        private final IntWritable one = new IntWritable(1);
 
         @Override
         protected void setup(Context context) throws IOException,InterruptedException {
 
             Configuration conf = context.getConfiguration();
 
-            String stopWordsPath = conf.get("stopwords");
-            String delimitersPath = conf.get("delimiters");
+            this.tokenizer = new TitleTokenizer<Context>(context) {
+                @Override
+                protected void emit(Text word, Context context) throws IOException, InterruptedException {
+                    write(word, context);
+                }
+            };
+            if (conf.getBoolean("distinct", false)) {
+                this.distinct = new DistinctCounter();
+            }
 
-            this.stopWords = Arrays.asList(readHDFSFile(stopWordsPath, conf).split("\n"));
-            this.delimiters = readHDFSFile(delimitersPath, conf);
+            if ("inmapper".equals(conf.get("combine", "combiner"))) {
+                this.counts = new WordCounts();
+                this.countsBudget = conf.getLong("combine.memory.mb", 64) << 20;
+            }
         }
 
 
         @Override
         public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-          String line = value.toString();
-          StringTokenizer st = new StringTokenizer(line, this.delimiters);
+          this.tokenizer.tokenize(value, context);
+        }
 
-          while (st.hasMoreTokens()) {
-            String title = st.nextToken();
+        // Every token goes through here: straight to the context, or into the
+        // in-mapper table which is flushed once it outgrows its budget.
+        private void write(Text word, Context context) throws IOException, InterruptedException {
+          if (this.distinct != null) {
+            this.distinct.add(word.getBytes(), word.getLength());
+          }
 
-            if (!this.stopWords.contains(title.trim().toLowerCase())) {
-              context.write(new Text(title.trim().toLowerCase()), new IntWritable(1));
-            }
+          if (this.counts == null) {
+            context.write(word, this.one);
+            return;
+          }
+
+          this.counts.add(word.getBytes(), word.getLength(), 1);
+          if (this.counts.memory() > this.countsBudget) {
+            this.counts.flush(context);
           }
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+          this.tokenizer.countTokens(context);
+          if (this.counts != null) {
+            this.counts.flush(context);
+          }
+          if (this.distinct != null) {
+            this.distinct.save(distinctPath(context), context);
+          }
+        }
+    }
+
+    // Tokenizes like TitleCountMap but counts into a Space-Saving sketch and
+    // writes nothing until cleanup(), where the whole sketch is emitted.
+    public static class TitleSketchMap extends TimedMapper<Object, Text, NullWritable, SpaceSaving> {
+        TitleTokenizer<Context> tokenizer;
+        SpaceSaving sketch;
+
+        @Override
+        protected void setup(Context context) throws IOException,InterruptedException {
+            this.sketch = new SpaceSaving(sketchCapacity(context.getConfiguration()));
+            this.tokenizer = new TitleTokenizer<Context>(context) {
+                @Override
+                protected void emit(Text word, Context context) {
+                    sketch.offer(word, 1);
+                }
+            };
+        }
+
+        @Override
+        public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+          this.tokenizer.tokenize(value, context);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+          this.tokenizer.countTokens(context);
+          context.write(NullWritable.get(), this.sketch);
+        }
     }
 
-    public static class TitleCountReduce extends Reducer<Text, IntWritable, Text, IntWritable> {
+    public static class TitleCountReduce extends TimedReducer<Text, IntWritable, Text, IntWritable> {
         @Override
         public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
             int sum = 0;
@@ -150,71 +537,982 @@ public class TopTitles extends Configured implements Tool {
         }
     }
 
-    public static class TopTitlesMap extends Mapper<Text, Text, NullWritable, TextArrayWritable> {
+    // Top N selectors tally the entries they took in and pushed out again here
+    private static final String TOP_N_COUNTERS = "Top N";
+
+    static void countTopN(TaskInputOutputContext<?, ?, ?, ?> context, long insertions, long evictions) {
+        context.getCounter(TOP_N_COUNTERS, "Insertions").increment(insertions);
+        context.getCounter(TOP_N_COUNTERS, "Evictions").increment(evictions);
+    }
+
+    public static class TopTitlesCountReduce extends TimedReducer<Text, IntWritable, Text, IntWritable> {
         Integer N;
-        private TreeSet<Pair<Integer, String>> wcMap = new TreeSet<Pair<Integer, String>>();
+        private TopNWords top;
 
         @Override
         protected void setup(Context context) throws IOException,InterruptedException {
             Configuration conf = context.getConfiguration();
             this.N = conf.getInt("N", 10);
+            this.top = new TopNWords(this.N);
         }
 
         @Override
-        public void map(Text key, Text value, Context context) throws IOException, InterruptedException {
-            String word = key.toString();
-            Integer count = Integer.parseInt(value.toString());
+        public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable val : values) {
+              sum += val.get();
+            }
 
-            wcMap.add(new Pair<Integer, String>(count, word));
+            if (!top.rejects(sum)) {
+              top.offer(sum, key.toString());
+            }
+        }
 
-            if (wcMap.size() > this.N) {
-              wcMap.remove(wcMap.first());
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            countTopN(context, top.insertions(), top.evictions());
+            top.sortDescending();
+            for (int i = top.size() - 1; i >= 0; i--) {
+              context.write(new Text(top.word(i)), new IntWritable(top.count(i)));
             }
         }
+    }
+
+    public static class TopTitlesSketchReduce extends TimedReducer<NullWritable, SpaceSaving, Text, Text> {
+        Integer N;
+        private SpaceSaving sketch;
+
+        @Override
+        protected void setup(Context context) throws IOException,InterruptedException {
+            Configuration conf = context.getConfiguration();
+            this.N = conf.getInt("N", 10);
+            this.sketch = new SpaceSaving(sketchCapacity(conf));
+        }
+
+        @Override
+        public void reduce(NullWritable key, Iterable<SpaceSaving> values, Context context) throws IOException, InterruptedException {
+            for (SpaceSaving val : values) {
+              sketch.merge(val);
+            }
+
+            sketch.sortDescending();
+            for (int i = Math.min(this.N, sketch.size()) - 1; i >= 0; i--) {
+              context.write(sketch.word(i), new Text(sketch.count(i) + "\t" + sketch.error(i)));
+            }
+        }
+    }
+
+    public static class TopTitlesMap extends TimedMapper<Text, Writable, NullWritable, IntTextPairWritable> {
+        Integer N;
+        private TopNWords top;
+
+        @Override
+        protected void setup(Context context) throws IOException,InterruptedException {
+            Configuration conf = context.getConfiguration();
+            this.N = conf.getInt("N", 10);
+            this.top = new TopNWords(this.N);
+        }
+
+        @Override
+        public void map(Text key, Writable value, Context context) throws IOException, InterruptedException {
+            int count = intValue(value);
+            if (top.rejects(count)) return;
+
+            top.offer(count, key.toString());
+        }
 
         @Override
         protected void cleanup(Context context) throws IOException, InterruptedException {
-            for (Pair<Integer, String> itm : wcMap) {
-              String[] strings = { itm.first.toString(), itm.second };
-              TextArrayWritable val = new TextArrayWritable(strings);
+            countTopN(context, top.insertions(), top.evictions());
+            top.sortDescending();
+            IntTextPairWritable val = new IntTextPairWritable();
+            for (int i = top.size() - 1; i >= 0; i--) {
+              val.set(top.count(i), top.word(i));
               context.write(NullWritable.get(), val);
             }
         }
     }
 
-    public static class TopTitlesReduce extends Reducer<NullWritable, TextArrayWritable, Text, IntWritable> {
+    public static class TopTitlesReduce extends TimedReducer<NullWritable, IntTextPairWritable, Text, IntWritable> {
         Integer N;
-        private TreeSet<Pair<Integer, String>> wcMap = new TreeSet<Pair<Integer, String>>();
+        private TopNWords top;
 
         @Override
         protected void setup(Context context) throws IOException,InterruptedException {
             Configuration conf = context.getConfiguration();
             this.N = conf.getInt("N", 10);
+            this.top = new TopNWords(this.N);
+        }
+
+        @Override
+        public void reduce(NullWritable key, Iterable<IntTextPairWritable> values, Context context) throws IOException, InterruptedException {
+            for (IntTextPairWritable val : values) {
+              int count = val.first();
+              if (top.rejects(count)) continue;
+
+              top.offer(count, val.second().toString());
+            }
+
+            top.sortDescending();
+            for (int i = top.size() - 1; i >= 0; i--) {
+              Text word = new Text(top.word(i));
+              IntWritable value = new IntWritable(top.count(i));
+              context.write(word, value);
+            }
         }
 
         @Override
-        public void reduce(NullWritable key, Iterable<TextArrayWritable> values, Context context) throws IOException, InterruptedException {
-            for (TextArrayWritable val : values) {
-              Text[] pair = (Text[]) val.toArray();
+        protected void cleanup(Context context) {
+            countTopN(context, top.insertions(), top.evictions());
+        }
+    }
 
-              String word = pair[1].toString();
-              Integer count = Integer.parseInt(pair[0].toString());
 
-              wcMap.add(new Pair<Integer, String>(count, word));
+    // Stop word and delimiter lookups for the title mappers. Both tables are
+    // built once in setup() so that map() pays a single probe per character
+    // and per token instead of a StringTokenizer delimiter scan and a linear
+    // List.contains().
+    public static class TitleFilter {
+        private final long[] delimiters = new long[1 << 10];
+        private final String[] stopWords;
+        private final int mask;
 
-              if (wcMap.size() > this.N) {
-                wcMap.remove(wcMap.first());
-              }
+        public TitleFilter(String stopWords, String delimiters) {
+            for (int i = 0; i < delimiters.length(); i++) {
+                char c = delimiters.charAt(i);
+                this.delimiters[c >>> 6] |= 1L << c;
             }
 
-            for (Pair<Integer, String> itm : wcMap) {
-              Text word = new Text(itm.second);
-              IntWritable value = new IntWritable(itm.first);
-              context.write(word, value);
+            String[] words = stopWords.split("\n");
+            int size = 2;
+            while (size < words.length * 2) {
+                size <<= 1;
             }
+            this.stopWords = new String[size];
+            this.mask = size - 1;
+
+            for (String word : words) {
+                int i = slot(word.hashCode());
+                while (this.stopWords[i] != null && !this.stopWords[i].equals(word)) {
+                    i = (i + 1) & mask;
+                }
+                this.stopWords[i] = word;
+            }
+        }
+
+        public boolean isDelimiter(char c) {
+            return (delimiters[c >>> 6] & (1L << c)) != 0;
         }
+
+        public boolean isStopWord(String word) {
+            int i = slot(word.hashCode());
+            String entry;
+            while ((entry = stopWords[i]) != null) {
+                if (entry.equals(word)) return true;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        // Same lookup over an ASCII byte range. String.hashCode() of an ASCII
+        // string is the same polynomial over its bytes, so no String is needed.
+        public boolean isStopWord(byte[] bytes, int start, int end) {
+            int h = 0;
+            for (int k = start; k < end; k++) {
+                h = 31 * h + bytes[k];
+            }
+
+            int i = slot(h);
+            String entry;
+            while ((entry = stopWords[i]) != null) {
+                if (matches(entry, bytes, start, end)) return true;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        private static boolean matches(String entry, byte[] bytes, int start, int end) {
+            if (entry.length() != end - start) return false;
+            for (int k = start; k < end; k++) {
+                if (entry.charAt(k - start) != bytes[k]) return false;
+            }
+            return true;
+        }
+
+        private int slot(int h) {
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
+
+// HyperLogLog distinct-value counter with 2^14 one-byte registers, for a
+// standard error of about 0.8%. Every map task saves its registers to a
+// file of its own under a shared directory and the driver takes the
+// register-wise maximum over all of them. A retried or speculative attempt
+// can only repeat the same maxima, so it never inflates the estimate, and
+// the short file of an attempt killed mid-write is skipped.
+class DistinctCounter {
+    private static final int P = 14;
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    // FNV-1a over the bytes, finished with the 64-bit mix below
+    public void add(byte[] bytes, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int k = 0; k < length; k++) {
+            h ^= bytes[k] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    public void add(int value) {
+        addHash(mix(value));
+    }
+
+    public long estimate() {
+        double sum = 0.0;
+        int zeros = 0;
+        for (int i = 0; i < M; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) zeros++;
+        }
+
+        double estimate = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+        // linear counting is more accurate while many registers are empty
+        if (estimate <= 2.5 * M && zeros > 0) {
+            estimate = M * Math.log((double) M / zeros);
+        }
+        return Math.round(estimate);
     }
 
+    public void save(Path dir, TaskAttemptContext context) throws IOException {
+        Path file = new Path(dir, context.getTaskAttemptID().toString());
+        FSDataOutputStream out = file.getFileSystem(context.getConfiguration()).create(file, true);
+        try {
+            out.write(registers);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static DistinctCounter load(Path dir, Configuration conf) throws IOException {
+        DistinctCounter counter = new DistinctCounter();
+        FileSystem fs = dir.getFileSystem(conf);
+        if (!fs.exists(dir)) return counter;
+
+        byte[] other = new byte[M];
+        for (FileStatus file : fs.listStatus(dir)) {
+            // an attempt killed while writing leaves a short file
+            if (file.getLen() != M) continue;
+            FSDataInputStream in = fs.open(file.getPath());
+            try {
+                in.readFully(other);
+            } finally {
+                in.close();
+            }
+            for (int i = 0; i < M; i++) {
+                if (other[i] > counter.registers[i]) counter.registers[i] = other[i];
+            }
+        }
+        return counter;
+    }
+
+    private void addHash(long h) {
+        int i = (int) (h >>> (64 - P));
+        // position of the first 1 bit after the index bits, capped at 64 - P + 1
+        byte rank = (byte) (Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1);
+        if (rank > registers[i]) registers[i] = rank;
+    }
+
+    // MurmurHash3 fmix64
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+// Loads the small side files that every mapper needs: stopwords,
+// delimiters and league. The driver ships them through the distributed
+// cache, and each task memory-maps its localized copy instead of opening
+// the file on HDFS. Without a cached copy, the configured path is read
+// directly. Parsed results can be kept for the rest of the job with
+// cache(), so tasks that share a JVM (local runner, uber jobs) parse them
+// only once.
+class SideFiles {
+    private static String cachedJob;
+    private static final Map<String, Object> parsed = new HashMap<String, Object>();
+
+    // Ships the file configured under each key, linked as "side-<key>"
+    public static void addCacheFiles(Job job, String... keys) throws IOException {
+        Configuration conf = job.getConfiguration();
+        for (String key : keys) {
+            String value = conf.get(key);
+            if (value == null) continue;
+
+            Path path = new Path(value);
+            URI uri = path.getFileSystem(conf).makeQualified(path).toUri();
+            try {
+                job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, linkName(key)));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // The lines of the file configured under key, each followed by "\n",
+    // exactly as readHDFSFile returns them
+    public static String read(JobContext context, String key) throws IOException {
+        Configuration conf = context.getConfiguration();
+        File local = new File(linkName(key));
+        Reader reader;
+        if (isCached(context, key) && local.isFile()) {
+            reader = new StringReader(map(local));
+        } else {
+            Path path = new Path(conf.get(key));
+            reader = new InputStreamReader(path.getFileSystem(conf).open(path));
+        }
+
+        BufferedReader in = new BufferedReader(reader);
+        try {
+            StringBuilder everything = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                everything.append(line);
+                everything.append("\n");
+            }
+            return everything.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    public static synchronized Object cached(JobContext context, String name) {
+        String job = context.getJobID().toString();
+        if (!job.equals(cachedJob)) {
+            parsed.clear();
+            cachedJob = job;
+        }
+        return parsed.get(name);
+    }
+
+    public static synchronized void cache(JobContext context, String name, Object value) {
+        cached(context, name);
+        parsed.put(name, value);
+    }
+
+    private static boolean isCached(JobContext context, String key) throws IOException {
+        URI[] files = context.getCacheFiles();
+        if (files == null) return false;
+
+        for (URI file : files) {
+            if (linkName(key).equals(file.getFragment())) return true;
+        }
+        return false;
+    }
+
+    private static String map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Charset.defaultCharset().decode(buffer).toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String linkName(String key) {
+        return "side-" + key;
+    }
+}
+
+// Mapper that times its own setup, map loop and cleanup and adds the
+// nanoseconds to the "<stage> setup/map/cleanup" counters of the
+// PHASE_COUNTERS group, where they show up in the job history next to the
+// built-in counters. The map phase runs from the first record read to the
+// last map() returning, so it includes reading input and collecting output
+// but not the final sort and spill. Nothing is timed per record.
+abstract class TimedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+    public static final String PHASE_COUNTERS = "Phase Time (ns)";
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        setup(context);
+        long mapStart = System.nanoTime();
+        long cleanupStart;
+        try {
+            while (context.nextKeyValue()) {
+                map(context.getCurrentKey(), context.getCurrentValue(), context);
+            }
+        } finally {
+            cleanupStart = System.nanoTime();
+            cleanup(context);
+        }
+        long end = System.nanoTime();
+
+        String stage = getClass().getSimpleName();
+        context.getCounter(PHASE_COUNTERS, stage + " setup").increment(mapStart - start);
+        context.getCounter(PHASE_COUNTERS, stage + " map").increment(cleanupStart - mapStart);
+        context.getCounter(PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+    }
+}
+
+// Reducer counterpart of TimedMapper. The reduce phase covers iterating the
+// merged, sorted input, so it includes the final merge and deserializing
+// the values. Combiners are timed the same way, inside the map task, and
+// count under "<stage> combiner setup/reduce/cleanup" instead.
+abstract class TimedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> extends Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run(Context context) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        setup(context);
+        long reduceStart = System.nanoTime();
+        long cleanupStart;
+        try {
+            while (context.nextKey()) {
+                reduce(context.getCurrentKey(), context.getValues(), context);
+                // as in Reducer.run(), a mark()ed value iterator has to be reset per key
+                Iterator<VALUEIN> values = context.getValues().iterator();
+                if (values instanceof ReduceContext.ValueIterator) {
+                    ((ReduceContext.ValueIterator<VALUEIN>) values).resetBackupStore();
+                }
+            }
+        } finally {
+            cleanupStart = System.nanoTime();
+            cleanup(context);
+        }
+        long end = System.nanoTime();
+
+        String stage = getClass().getSimpleName();
+        // a combiner runs inside the map task; keep its time apart from the reduce side
+        if (context.getTaskAttemptID().getTaskType() == TaskType.MAP) stage += " combiner";
+        context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " setup").increment(reduceStart - start);
+        context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " reduce").increment(cleanupStart - reduceStart);
+        context.getCounter(TimedMapper.PHASE_COUNTERS, stage + " cleanup").increment(end - cleanupStart);
+    }
+}
+
+// -D engine=local-parallel runs every job of the tool inside this JVM on
+// the local job runner and the local filesystem, without submitting to
+// YARN. Each job gets engine.threads concurrent map and reduce tasks, one
+// per core by default. The input is split into at least one piece per
+// thread, and jobs that don't pin their reducer count get one reducer per
+// thread, so every stage runs in parallel.
+class LocalParallelEngine {
+    private static final long MIN_SPLIT = 1 << 20;
+
+    public static void configure(Configuration conf, Path input) throws IOException {
+        if (!"local-parallel".equals(conf.get("engine"))) return;
+
+        int threads = conf.getInt("engine.threads", Runtime.getRuntime().availableProcessors());
+        conf.set("mapreduce.framework.name", "local");
+        conf.set("fs.defaultFS", "file:///");
+        conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+        conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+
+        // an explicit -D mapreduce.job.reduces still wins
+        String[] sources = conf.getPropertySources(MRJobConfig.NUM_REDUCES);
+        if (sources == null || sources[sources.length - 1].endsWith("-default.xml")) {
+            conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+        }
+
+        long size = input.getFileSystem(conf).getContentSummary(input).getLength();
+        conf.setLong(FileInputFormat.SPLIT_MAXSIZE, Math.max(MIN_SPLIT, (size + threads - 1) / threads));
+    }
+
+    // The tools keep their job-to-job data under /mp2 on the cluster
+    // filesystem. Once configure() has switched to the local filesystem that
+    // would be the root of the local disk, so the same layout moves under
+    // hadoop.tmp.dir instead.
+    public static Path scratch(Configuration conf, Path path) {
+        if (!"local-parallel".equals(conf.get("engine"))) return path;
+        return new Path(conf.get("hadoop.tmp.dir"), path.toUri().getPath().substring(1));
+    }
+}
+
+// Open-addressing word -> count table for in-mapper combining. Keys are
+// kept as UTF-8 byte arrays and counts as a parallel int[], so adding a
+// word that is already present allocates nothing.
+class WordCounts {
+    // rough object header cost of each copied key
+    private static final int KEY_OVERHEAD = 16;
+
+    private byte[][] keys;
+    private int[] hashes;
+    private int[] counts;
+    private int mask;
+    private int size;
+    private long memory;
+
+    private final Text word = new Text();
+    private final IntWritable count = new IntWritable();
+
+    public WordCounts() {
+        allocate(1 << 10);
+    }
+
+    public void add(byte[] bytes, int length, int n) {
+        int h = 0;
+        for (int k = 0; k < length; k++) {
+            h = 31 * h + bytes[k];
+        }
+
+        int i = (h ^ (h >>> 16)) & mask;
+        byte[] key;
+        while ((key = keys[i]) != null) {
+            if (hashes[i] == h && matches(key, bytes, length)) {
+                counts[i] += n;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = Arrays.copyOf(bytes, length);
+        hashes[i] = h;
+        counts[i] = n;
+        memory += length + KEY_OVERHEAD;
+
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    // approximate heap held by the table, checked against the flush budget
+    public long memory() {
+        return memory + (long) keys.length * (8 + 4 + 4);
+    }
+
+    public void flush(TaskInputOutputContext<?, ?, Text, IntWritable> context) throws IOException, InterruptedException {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+
+            word.set(keys[i]);
+            count.set(counts[i]);
+            context.write(word, count);
+        }
+        allocate(1 << 10);
+    }
+
+    private static boolean matches(byte[] key, byte[] bytes, int length) {
+        if (key.length != length) return false;
+        for (int k = 0; k < length; k++) {
+            if (key[k] != bytes[k]) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+        long oldMemory = memory;
+        int oldSize = size;
+
+        allocate(oldKeys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) continue;
+
+            int i = (oldHashes[j] ^ (oldHashes[j] >>> 16)) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            hashes[i] = oldHashes[j];
+            counts[i] = oldCounts[j];
+        }
+        memory = oldMemory;
+        size = oldSize;
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        memory = 0;
+    }
+}
+
+// Bounded top-N selection over (count, word) pairs, ordered the same way
+// as TreeSet<Pair<Integer, String>>. The entries sit in a min-heap of
+// parallel arrays, so once the heap is full a record that cannot make the
+// cut is rejected by comparing its count against the root.
+class TopNWords {
+    private final int[] counts;
+    private final String[] words;
+    private int size;
+    private long insertions;
+
+    public TopNWords(int n) {
+        this.counts = new int[n];
+        this.words = new String[n];
+    }
+
+    // true when (count, anything) cannot displace the current minimum
+    public boolean rejects(int count) {
+        return size == counts.length && (size == 0 || count < counts[0]);
+    }
+
+    public void offer(int count, String word) {
+        if (size < counts.length) {
+            counts[size] = count;
+            words[size] = word;
+            siftUp(size++);
+            insertions++;
+        } else if (size > 0 && less(counts[0], words[0], count, word)) {
+            counts[0] = count;
+            words[0] = word;
+            siftDown(0, size);
+            insertions++;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // entries that made it into the selector, and those of them pushed out again
+    public long insertions() {
+        return insertions;
+    }
+
+    public long evictions() {
+        return insertions - size;
+    }
+
+    public int count(int i) {
+        return counts[i];
+    }
+
+    public String word(int i) {
+        return words[i];
+    }
+
+    // Heap-sorts the entries in place so that count(0)/word(0) is the
+    // largest; the selector is no longer usable for offer() afterwards.
+    public void sortDescending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(counts[i], words[i], counts[parent], words[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) break;
+            if (child + 1 < end && less(counts[child + 1], words[child + 1], counts[child], words[child])) child++;
+            if (!less(counts[child], words[child], counts[i], words[i])) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private static boolean less(int c1, String w1, int c2, String w2) {
+        return c1 < c2 || (c1 == c2 && w1.compareTo(w2) < 0);
+    }
+
+    private void swap(int i, int j) {
+        int count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        String word = words[i];
+        words[i] = words[j];
+        words[j] = word;
+    }
+}
+
+// Space-Saving summary of the most frequent words: at most capacity
+// (word, count, error) entries in a min-heap on count, with an index from
+// word to heap slot. An unseen word replaces the minimum and inherits its
+// count as error, so count never underestimates a word and overestimates
+// it by at most error; any word seen more than total / capacity times is
+// guaranteed to be present. merge() combines two summaries with the same
+// guarantee over their joint input.
+class SpaceSaving implements Writable {
+    private int capacity;
+    private Text[] words;
+    private int[] counts;
+    private int[] errors;
+    private int size;
+    private final HashMap<Text, Integer> index = new HashMap<Text, Integer>();
+
+    public SpaceSaving() {
+        this(0);
+    }
+
+    public SpaceSaving(int capacity) {
+        allocate(capacity);
+    }
+
+    public void offer(Text word, int n) {
+        Integer i = index.get(word);
+        if (i != null) {
+            counts[i] += n;
+            siftDown(i, size);
+        } else if (size < capacity) {
+            insert(new Text(word), n, 0);
+        } else if (capacity > 0) {
+            index.remove(words[0]);
+            errors[0] = counts[0];
+            counts[0] += n;
+            words[0].set(word);
+            index.put(words[0], 0);
+            siftDown(0, size);
+        }
+    }
+
+    // A word missing from a full summary may have occurred up to that
+    // summary's minimum count times, so it is charged that much as both
+    // count and error before the union is cut back to capacity.
+    public void merge(SpaceSaving other) {
+        int thisMin = size == capacity && size > 0 ? counts[0] : 0;
+        int otherMin = other.size == other.capacity && other.size > 0 ? other.counts[0] : 0;
+
+        int n = 0;
+        Text[] w = new Text[size + other.size];
+        int[] c = new int[w.length];
+        int[] e = new int[w.length];
+
+        for (int i = 0; i < size; i++) {
+            Integer j = other.index.get(words[i]);
+            w[n] = words[i];
+            c[n] = counts[i] + (j == null ? otherMin : other.counts[j]);
+            e[n] = errors[i] + (j == null ? otherMin : other.errors[j]);
+            n++;
+        }
+        for (int j = 0; j < other.size; j++) {
+            if (index.containsKey(other.words[j])) continue;
+            w[n] = new Text(other.words[j]);
+            c[n] = other.counts[j] + thisMin;
+            e[n] = other.errors[j] + thisMin;
+            n++;
+        }
+
+        allocate(capacity);
+        for (int k = 0; k < n; k++) {
+            if (size < capacity) {
+                insert(w[k], c[k], e[k]);
+            } else if (capacity > 0 && less(counts[0], words[0], c[k], w[k])) {
+                index.remove(words[0]);
+                words[0] = w[k];
+                counts[0] = c[k];
+                errors[0] = e[k];
+                index.put(words[0], 0);
+                siftDown(0, size);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Text word(int i) {
+        return words[i];
+    }
+
+    public int count(int i) {
+        return counts[i];
+    }
+
+    public int error(int i) {
+        return errors[i];
+    }
+
+    // Heap-sorts the entries in place so that entry 0 has the largest
+    // count; the summary is no longer usable for offer() or merge().
+    public void sortDescending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        index.clear();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, capacity);
+        WritableUtils.writeVInt(out, size);
+        for (int i = 0; i < size; i++) {
+            words[i].write(out);
+            WritableUtils.writeVInt(out, counts[i]);
+            WritableUtils.writeVInt(out, errors[i]);
+        }
+    }
+
+    // entries are written in heap order, so they are read straight back
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        allocate(WritableUtils.readVInt(in));
+        size = WritableUtils.readVInt(in);
+        for (int i = 0; i < size; i++) {
+            words[i] = new Text();
+            words[i].readFields(in);
+            counts[i] = WritableUtils.readVInt(in);
+            errors[i] = WritableUtils.readVInt(in);
+            index.put(words[i], i);
+        }
+    }
+
+    private void insert(Text word, int count, int error) {
+        words[size] = word;
+        counts[size] = count;
+        errors[size] = error;
+        index.put(word, size);
+        siftUp(size++);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(counts[i], words[i], counts[parent], words[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) break;
+            if (child + 1 < end && less(counts[child + 1], words[child + 1], counts[child], words[child])) child++;
+            if (!less(counts[child], words[child], counts[i], words[i])) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private static boolean less(int c1, Text w1, int c2, Text w2) {
+        return c1 < c2 || (c1 == c2 && w1.compareTo(w2) < 0);
+    }
+
+    private void swap(int i, int j) {
+        Text word = words[i];
+        words[i] = words[j];
+        words[j] = word;
+        int count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        int error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        index.put(words[i], i);
+        index.put(words[j], j);
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        words = new Text[capacity];
+        counts = new int[capacity];
+        errors = new int[capacity];
+        size = 0;
+        index.clear();
+    }
+}
+
+// (int, Text) record for the top-N funnels, such as (count, word). It is a
+// fixed-width int followed by the Text, with no array header or
+// per-element class names, and set() lets one instance be reused for
+// every record. The registered comparator orders the serialized bytes
+// like Pair<Integer, String> for ASCII words.
+class IntTextPairWritable implements WritableComparable<IntTextPairWritable> {
+    private int first;
+    private final Text second = new Text();
+
+    static {
+        WritableComparator.define(IntTextPairWritable.class, new Comparator());
+    }
+
+    public IntTextPairWritable() {
+    }
+
+    public IntTextPairWritable(int first, String second) {
+        set(first, second);
+    }
+
+    public void set(int first, String second) {
+        this.first = first;
+        this.second.set(second);
+    }
+
+    public int first() {
+        return first;
+    }
+
+    public Text second() {
+        return second;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(first);
+        second.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        first = in.readInt();
+        second.readFields(in);
+    }
+
+    @Override
+    public int compareTo(IntTextPairWritable o) {
+        int cmp = Integer.compare(first, o.first);
+        return cmp != 0 ? cmp : second.compareTo(o.second);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IntTextPairWritable)) return false;
+        IntTextPairWritable other = (IntTextPairWritable) o;
+        return first == other.first && second.equals(other.second);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * first + second.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return first + "\t" + second;
+    }
+
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(IntTextPairWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            if (cmp != 0) return cmp;
+
+            // the Text is a vint length followed by its UTF-8 bytes
+            int n1 = WritableUtils.decodeVIntSize(b1[s1 + 4]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2 + 4]);
+            return compareBytes(b1, s1 + 4 + n1, l1 - 4 - n1, b2, s2 + 4 + n2, l2 - 4 - n2);
+        }
+    }
 }
 
 // >>> Don't Change
@@ -0,0 +1,17 @@
+#!/bin/bash
+
+# Usage: bench.sh <Assignment> <Benchmark> [benchmark args...]
+# Compiles bench/<Benchmark>.java against <Assignment>.java and runs it.
+assignment_name=$1
+bench_name=$2
+shift 2
+
+echo "Building $bench_name against $assignment_name"
+rm -rf ./build/bench
+mkdir -p ./build/bench
+
+export HADOOP_CLASSPATH=$JAVA_HOME/lib/tools.jar
+hadoop com.sun.tools.javac.Main ${assignment_name}.java bench/${bench_name}.java -d build/bench
+
+export HADOOP_CLASSPATH=./build/bench
+hadoop $bench_name "$@"
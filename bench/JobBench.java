@@ -0,0 +1,274 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+// Runs one assignment end to end on the local job runner over a generated
+// corpus and records what each of its jobs did.
+//
+// Title assignments read Zipf(bench.skew) titles of 1-8 words over
+// bench.vocabulary words; the bench.stopwords most common words are the
+// stop words. Link assignments read a graph of bench.records pages in the
+// /mp2/links line format, with a Zipf(bench.skew) out-degree of up to
+// bench.degree links and Zipf(bench.skew) popular targets; the league is
+// bench.league random pages. A corpus is written once per scale and skew
+// under <data> and reused by later runs, so every assignment and every
+// build sees the same input.
+//
+// The assignment is started through its ToolRunner entry point with the
+// remaining -D options. Afterwards the jobs it ran and their wall times
+// are taken from its getJobs() and getJobMillis(), the counters are read
+// from the Job objects, and one row per job is appended to <results>.csv and <results>.json (one object
+// per line): wall time, input records per second, map output bytes, shuffle
+// bytes, spilled records and GC time. Under the local runner all tasks share this
+// JVM, so GC time is summed over tasks that may have overlapped.
+//
+//   bench.sh TopPopularLinks JobBench -D bench.records=1000000 TopPopularLinks bench-data bench-results
+public class JobBench {
+    private static final String[] COLUMNS = {
+        "tool", "job", "job_id", "records", "skew", "wall_ms", "input_records", "records_per_sec",
+        "map_output_bytes", "shuffle_bytes", "spilled_records", "gc_ms"
+    };
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("mapreduce.framework.name", "local");
+        conf.set("fs.defaultFS", "file:///");
+        // the client polls once a second by default, which would round every job's wall time
+        conf.setInt("mapreduce.client.progressmonitor.pollinterval", 50);
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+        String tool = remaining[0];
+        File data = new File(remaining[1]);
+        String results = remaining[2];
+
+        int records = conf.getInt("bench.records", 1000000);
+        double skew = Double.parseDouble(conf.get("bench.skew", "1.0"));
+        boolean titles = tool.startsWith("Title") || tool.startsWith("TopTitle");
+
+        File corpus = new File(data, (titles ? "titles-" : "links-") + records + "-" + skew);
+        if (!corpus.exists()) {
+            long start = System.nanoTime();
+            if (titles) {
+                generateTitles(corpus, records, skew, conf);
+            } else {
+                generateLinks(corpus, records, skew, conf);
+            }
+            System.out.printf("generated %s in %.1f ms%n", corpus, (System.nanoTime() - start) / 1e6);
+        }
+
+        List<String> toolArgs = new ArrayList<String>();
+        if (titles) {
+            toolArgs.addAll(Arrays.asList("-D", "stopwords=" + new File(corpus, "stopwords.txt").getAbsolutePath(),
+                    "-D", "delimiters=" + new File(corpus, "delimiters.txt").getAbsolutePath()));
+        } else if (tool.equals("PopularityLeague")) {
+            toolArgs.addAll(Arrays.asList("-D", "league=" + new File(corpus, "league.txt").getAbsolutePath()));
+        }
+        Path output = new Path(new File(data, "output-" + tool).getAbsolutePath());
+        FileSystem.get(conf).delete(output, true);
+        toolArgs.add(new File(corpus, "input").getAbsolutePath());
+        toolArgs.add(output.toString());
+
+        Tool instance = (Tool) Class.forName(tool).getDeclaredConstructor().newInstance();
+        long start = System.nanoTime();
+        int exitCode = ToolRunner.run(conf, instance, toolArgs.toArray(new String[0]));
+        long wall = System.nanoTime() - start;
+        if (exitCode != 0) {
+            throw new IllegalStateException(tool + " exited with " + exitCode);
+        }
+
+        // every assignment lists the jobs it ran; the local runner reports no start or finish times
+        @SuppressWarnings("unchecked")
+        List<Job> jobs = (List<Job>) instance.getClass().getMethod("getJobs").invoke(instance);
+        @SuppressWarnings("unchecked")
+        List<Long> jobMillis = (List<Long>) instance.getClass().getMethod("getJobMillis").invoke(instance);
+
+        PrintWriter csv = append(results + ".csv");
+        PrintWriter json = append(results + ".json");
+        try {
+            if (new File(results + ".csv").length() == 0) {
+                csv.println(String.join(",", COLUMNS));
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                Counters counters = job.getCounters();
+                long jobWall = jobMillis.get(i);
+                long input = counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue();
+                Object[] row = {
+                    tool, i + 1, job.getJobID().toString(), records, skew, jobWall, input,
+                    jobWall == 0 ? 0 : input * 1000 / jobWall,
+                    counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue(),
+                    counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue(),
+                    counters.findCounter(TaskCounter.SPILLED_RECORDS).getValue(),
+                    counters.findCounter(TaskCounter.GC_TIME_MILLIS).getValue()
+                };
+                csv.println(csvRow(row));
+                json.println(jsonRow(row));
+                System.out.println(csvRow(row));
+            }
+        } finally {
+            csv.close();
+            json.close();
+        }
+        System.out.printf("%s: %d jobs in %.1f ms%n", tool, jobs.size(), wall / 1e6);
+    }
+
+    private static PrintWriter append(String file) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    private static String csvRow(Object[] row) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) line.append(',');
+            line.append(row[i]);
+        }
+        return line.toString();
+    }
+
+    private static String jsonRow(Object[] row) {
+        StringBuilder line = new StringBuilder("{");
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) line.append(", ");
+            line.append('"').append(COLUMNS[i]).append("\": ");
+            if (row[i] instanceof String) {
+                line.append('"').append(row[i]).append('"');
+            } else {
+                line.append(row[i]);
+            }
+        }
+        return line.append('}').toString();
+    }
+
+    static void generateTitles(File corpus, int records, double skew, Configuration conf) throws IOException {
+        int vocabulary = conf.getInt("bench.vocabulary", 100000);
+        int files = conf.getInt("bench.files", 4);
+        Zipf words = new Zipf(vocabulary, skew);
+        Random random = new Random(42);
+        StringBuilder line = new StringBuilder();
+
+        new File(corpus, "input").mkdirs();
+        for (int f = 0; f < files; f++) {
+            PrintWriter out = append(new File(corpus, "input/titles-" + f).getPath());
+            try {
+                for (int i = f; i < records; i += files) {
+                    line.setLength(0);
+                    int length = 1 + random.nextInt(8);
+                    for (int w = 0; w < length; w++) {
+                        if (w > 0) line.append('_');
+                        int start = line.length();
+                        word(words.next(random), line);
+                        line.setCharAt(start, Character.toUpperCase(line.charAt(start)));
+                    }
+                    out.println(line);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        PrintWriter stopWords = append(new File(corpus, "stopwords.txt").getPath());
+        try {
+            for (int rank = 1; rank <= conf.getInt("bench.stopwords", 50); rank++) {
+                line.setLength(0);
+                word(rank, line);
+                stopWords.println(line);
+            }
+        } finally {
+            stopWords.close();
+        }
+
+        PrintWriter delimiters = append(new File(corpus, "delimiters.txt").getPath());
+        try {
+            delimiters.print(" \t,;.?!-:@[](){}_*/");
+        } finally {
+            delimiters.close();
+        }
+    }
+
+    static void generateLinks(File corpus, int pages, double skew, Configuration conf) throws IOException {
+        int files = conf.getInt("bench.files", 4);
+        Zipf targets = new Zipf(pages, skew);
+        Zipf degrees = new Zipf(conf.getInt("bench.degree", 100), skew);
+        Random random = new Random(42);
+        StringBuilder line = new StringBuilder();
+        TreeSet<Integer> links = new TreeSet<Integer>();
+
+        new File(corpus, "input").mkdirs();
+        for (int f = 0; f < files; f++) {
+            PrintWriter out = append(new File(corpus, "input/links-" + f).getPath());
+            try {
+                for (int page = f + 1; page <= pages; page += files) {
+                    links.clear();
+                    int degree = degrees.next(random);
+                    for (int t = 0; t < degree; t++) {
+                        links.add(targets.next(random));
+                    }
+                    line.setLength(0);
+                    line.append(page).append(':');
+                    for (int target : links) {
+                        line.append(' ').append(target);
+                    }
+                    out.println(line);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        PrintWriter league = append(new File(corpus, "league.txt").getPath());
+        try {
+            for (int i = 0; i < conf.getInt("bench.league", 16); i++) {
+                league.println(1 + random.nextInt(pages));
+            }
+        } finally {
+            league.close();
+        }
+    }
+
+    // The rank in base 26, so that common words are short
+    private static void word(int rank, StringBuilder out) {
+        int start = out.length();
+        for (int n = rank; n > 0; n = (n - 1) / 26) {
+            out.insert(start, (char) ('a' + (n - 1) % 26));
+        }
+    }
+
+    // Samples ranks 1..n with probability proportional to 1 / rank^skew
+    static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble());
+            return (i < 0 ? -i - 1 : i) + 1;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Sorts serialized map output keys with the same QuickSort the map-side
+// sort uses. Each key type is sorted twice: once with the comparator
+// Hadoop registers for it, and once with a comparator that deserializes
+// both keys on every comparison.
+//
+// The registered comparators are Text.Comparator and
+// IntWritable.Comparator. Both compare the serialized bytes in place,
+// eight bytes at a time for Text. Words come from a titles file; page ids
+// are random.
+//
+//   bench.sh TitleCount KeyCompareBench titles.txt
+public class KeyCompareBench {
+    private static final int MAX_KEYS = 1000000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        List<Writable> words = new ArrayList<Writable>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null && words.size() < MAX_KEYS) {
+                for (String word : line.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+                    if (!word.isEmpty()) words.add(new Text(word));
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        Random random = new Random(42);
+        List<Writable> pageIds = new ArrayList<Writable>();
+        for (int i = 0; i < MAX_KEYS; i++) {
+            pageIds.add(new IntWritable(random.nextInt(6000000)));
+        }
+
+        run("words", words, Text.class);
+        run("page ids", pageIds, IntWritable.class);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void run(String label, List<Writable> keys, Class<? extends WritableComparable> keyClass) throws IOException {
+        int n = keys.size();
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (int i = 0; i < n; i++) {
+            offsets[i] = out.getLength();
+            keys.get(i).write(out);
+            lengths[i] = out.getLength() - offsets[i];
+        }
+        byte[] buffer = out.getData();
+
+        RawComparator registered = WritableComparator.get(keyClass);
+        RawComparator deserializing = new WritableComparator(keyClass, true) {};
+
+        int[] rawOrder = new int[n];
+        int[] objectOrder = new int[n];
+        long raw = Long.MAX_VALUE;
+        long object = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            raw = Math.min(raw, sort(buffer, offsets, lengths, registered, rawOrder));
+            object = Math.min(object, sort(buffer, offsets, lengths, deserializing, objectOrder));
+        }
+
+        for (int i = 0; i < n; i++) {
+            int a = rawOrder[i];
+            int b = objectOrder[i];
+            if (registered.compare(buffer, offsets[a], lengths[a], buffer, offsets[b], lengths[b]) != 0) {
+                throw new IllegalStateException(label + " sort orders differ at " + i);
+            }
+        }
+        System.out.printf("%s: %d keys, %s %.1f ms, deserializing %.1f ms%n",
+                label, n, registered.getClass().getName(), raw / 1e6, object / 1e6);
+    }
+
+    private static long sort(final byte[] buffer, final int[] offsets, final int[] lengths, final RawComparator<?> comparator, final int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        IndexedSortable sortable = new IndexedSortable() {
+            @Override
+            public int compare(int i, int j) {
+                return comparator.compare(buffer, offsets[order[i]], lengths[order[i]],
+                        buffer, offsets[order[j]], lengths[order[j]]);
+            }
+
+            @Override
+            public void swap(int i, int j) {
+                int index = order[i];
+                order[i] = order[j];
+                order[j] = index;
+            }
+        };
+
+        long start = System.nanoTime();
+        new QuickSort().sort(sortable, 0, order.length);
+        return System.nanoTime() - start;
+    }
+}
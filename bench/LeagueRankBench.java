@@ -0,0 +1,54 @@
+import java.util.Arrays;
+import java.util.Random;
+
+// Times LeagueRankReduce's rank calculation against the nested loop it
+// replaced for league sizes from 10 to 1M. Counts are drawn from a small
+// range so that ties are common. The nested loop is skipped above
+// QUADRATIC_LIMIT entries, where it would run for hours.
+//
+//   bench.sh PopularityLeague LeagueRankBench
+public class LeagueRankBench {
+    private static final int QUADRATIC_LIMIT = 100000;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+
+        for (int n = 10; n <= 1000000; n *= 10) {
+            long[] entries = new long[n];
+            for (int i = 0; i < n; i++) {
+                entries[i] = PopularityLeague.LeagueRankReduce.pack(random.nextInt(Math.max(n / 4, 1)), i);
+            }
+
+            int[] ranks = new int[n];
+            long start = System.nanoTime();
+            Arrays.sort(entries);
+            PopularityLeague.LeagueRankReduce.rankSorted(entries, n, ranks);
+            long sweep = System.nanoTime() - start;
+
+            if (n > QUADRATIC_LIMIT) {
+                System.out.printf("n=%d: sort + sweep %.3f ms, nested loop skipped%n", n, sweep / 1e6);
+                continue;
+            }
+
+            start = System.nanoTime();
+            int[] expected = nestedLoop(entries, n);
+            long nested = System.nanoTime() - start;
+
+            if (!Arrays.equals(ranks, expected)) {
+                throw new IllegalStateException("ranks differ for n=" + n);
+            }
+            System.out.printf("n=%d: sort + sweep %.3f ms, nested loop %.3f ms%n", n, sweep / 1e6, nested / 1e6);
+        }
+    }
+
+    static int[] nestedLoop(long[] entries, int n) {
+        int[] ranks = new int[n];
+        for (int i = 0; i < n; i++) {
+            int count = PopularityLeague.LeagueRankReduce.count(entries[i]);
+            for (int j = 0; j < n; j++) {
+                if (PopularityLeague.LeagueRankReduce.count(entries[j]) < count) ranks[i]++;
+            }
+        }
+        return ranks;
+    }
+}
@@ -0,0 +1,408 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Drives one mapper, and optionally the reducer behind it, over a synthetic
+// corpus without starting a job. The stages run through the same context
+// implementations the task runtime uses, so setup, map/reduce and cleanup,
+// output serialization, the raw key sort and value deserialization are all
+// part of the measurement. Disk, spills and the network are not.
+//
+// The corpus is split over bench.maps mappers. Their combined output is
+// sorted with the output key comparator and fed to a single reducer, as if
+// the job ran with one reduce task. Each stage is run bench.rounds times;
+// the first rounds warm up the JIT and the fastest round is reported.
+//
+// Corpora, all drawn from a fixed seed:
+//   titles       title lines of 1-8 words from a Zipf(bench.skew) vocabulary
+//                of bench.vocabulary words
+//   links        "page: target ..." lines with a Zipf(bench.skew) out-degree
+//                of up to bench.degree links and Zipf(bench.skew) popular
+//                targets among bench.pages pages
+//   word-counts  "word <tab> count" records with Zipf(bench.skew) counts, as
+//                read by the top N title stages
+//   page-counts  "pageId <tab> count" records, as read by the top N link and
+//                league stages
+// bench.records sets the number of lines or records (default 1000000).
+//
+//   bench.sh TitleCount StageBench -D stopwords=stopwords.txt -D delimiters=delimiters.txt titles TitleCount.TitleCountMap TitleCount.TitleCountReduce
+//   bench.sh TopPopularLinks StageBench -D bench.skew=1.2 links TopPopularLinks.LinkCountMap
+//   bench.sh TopPopularLinks StageBench page-counts TopPopularLinks.TopLinksMap TopPopularLinks.TopLinksReduce
+public class StageBench {
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+        String corpus = args[0];
+        Class<?> mapClass = stageClass(args[1]);
+        Class<?> reduceClass = args.length > 2 ? stageClass(args[2]) : null;
+
+        int records = conf.getInt("bench.records", 1000000);
+        int maps = conf.getInt("bench.maps", 4);
+        int rounds = conf.getInt("bench.rounds", 5);
+        double skew = Double.parseDouble(conf.get("bench.skew", "1.0"));
+
+        long start = System.nanoTime();
+        List<Writable[]> input = generate(corpus, records, skew, conf);
+        System.out.printf("%s: %d records, skew %.2f, generated in %.1f ms%n",
+                corpus, input.size(), skew, (System.nanoTime() - start) / 1e6);
+
+        int splitSize = (input.size() + maps - 1) / maps;
+        long bestMap = Long.MAX_VALUE;
+        long bestReduce = Long.MAX_VALUE;
+        Output mapOutput = null;
+        Output reduceOutput = null;
+        Counters counters = null;
+        for (int round = 0; round < rounds; round++) {
+            counters = new Counters();
+            mapOutput = new Output();
+            long mapTime = 0;
+            for (int from = 0; from < input.size(); from += splitSize) {
+                List<Writable[]> split = input.subList(from, Math.min(from + splitSize, input.size()));
+                mapTime += runMapper(mapClass, conf, split, mapOutput, counters);
+            }
+            bestMap = Math.min(bestMap, mapTime);
+
+            if (reduceClass != null) {
+                reduceOutput = new Output();
+                bestReduce = Math.min(bestReduce, runReducer(reduceClass, conf, mapOutput, reduceOutput, counters));
+            }
+        }
+
+        System.out.printf("%s: %d maps, %.1f ms, %.0f records/s, %d output records, %d output bytes%n",
+                mapClass.getSimpleName(), maps, bestMap / 1e6, input.size() / (bestMap / 1e9),
+                mapOutput.size(), mapOutput.bytes.getLength());
+        if (reduceClass != null) {
+            System.out.printf("%s: sort + reduce %.1f ms, %.0f records/s, %d output records%n",
+                    reduceClass.getSimpleName(), bestReduce / 1e6, mapOutput.size() / (bestReduce / 1e9),
+                    reduceOutput.size());
+        }
+
+        // framework counters are not maintained here, only the stages' own
+        for (CounterGroup group : counters) {
+            if (group.getName().equals(TaskCounter.class.getName())) continue;
+            for (Counter counter : group) {
+                System.out.printf("  %s.%s = %d%n", group.getDisplayName(), counter.getDisplayName(), counter.getValue());
+            }
+        }
+    }
+
+    private static Class<?> stageClass(String name) throws ClassNotFoundException {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) throw e;
+            return Class.forName(name.substring(0, dot) + "$" + name.substring(dot + 1));
+        }
+    }
+
+    // Serialized key/value pairs, in the order they were written
+    static class Output extends RecordWriter<Object, Object> {
+        final DataOutputBuffer bytes = new DataOutputBuffer();
+        int[] offsets = new int[1024];
+        int[] keyLengths = new int[1024];
+        int[] lengths = new int[1024];
+        int count;
+        Class<?> keyClass;
+        Class<?> valueClass;
+
+        @Override
+        public void write(Object key, Object value) throws IOException {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                keyLengths = Arrays.copyOf(keyLengths, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            keyClass = key.getClass();
+            valueClass = value.getClass();
+
+            int offset = bytes.getLength();
+            ((Writable) key).write(bytes);
+            offsets[count] = offset;
+            keyLengths[count] = bytes.getLength() - offset;
+            ((Writable) value).write(bytes);
+            lengths[count] = bytes.getLength() - offset;
+            count++;
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+
+        int size() {
+            return count;
+        }
+    }
+
+    static class Reporter extends StatusReporter {
+        private final Counters counters;
+
+        Reporter(Counters counters) {
+            this.counters = counters;
+        }
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+
+    static class ListReader extends RecordReader<Writable, Writable> {
+        private final List<Writable[]> records;
+        private int next = -1;
+
+        ListReader(List<Writable[]> records) {
+            this.records = records;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            return ++next < records.size();
+        }
+
+        @Override
+        public Writable getCurrentKey() {
+            return records.get(next)[0];
+        }
+
+        @Override
+        public Writable getCurrentValue() {
+            return records.get(next)[1];
+        }
+
+        @Override
+        public float getProgress() {
+            return (float) next / records.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static long runMapper(Class<?> mapClass, Configuration conf, List<Writable[]> split, Output output, Counters counters)
+            throws IOException, InterruptedException {
+        Mapper mapper = (Mapper) ReflectionUtils.newInstance(mapClass, conf);
+        TaskAttemptID id = new TaskAttemptID("bench", 0, TaskType.MAP, 0, 0);
+        MapContextImpl context = new MapContextImpl(conf, id, new ListReader(split), output, null,
+                new Reporter(counters), null);
+
+        long start = System.nanoTime();
+        mapper.run(new WrappedMapper().getMapContext(context));
+        return System.nanoTime() - start;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static long runReducer(Class<?> reduceClass, Configuration conf, final Output input, Output output, Counters counters)
+            throws IOException, InterruptedException {
+        Reducer reducer = (Reducer) ReflectionUtils.newInstance(reduceClass, conf);
+        TaskAttemptID id = new TaskAttemptID("bench", 0, TaskType.REDUCE, 0, 0);
+        final RawComparator comparator = WritableComparator.get((Class<? extends WritableComparable>) input.keyClass);
+        final byte[] bytes = input.bytes.getData();
+        final int[] order = new int[input.count];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        long start = System.nanoTime();
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int i, int j) {
+                int a = order[i];
+                int b = order[j];
+                return comparator.compare(bytes, input.offsets[a], input.keyLengths[a],
+                        bytes, input.offsets[b], input.keyLengths[b]);
+            }
+
+            @Override
+            public void swap(int i, int j) {
+                int index = order[i];
+                order[i] = order[j];
+                order[j] = index;
+            }
+        }, 0, order.length);
+
+        RawKeyValueIterator sorted = new RawKeyValueIterator() {
+            private final DataInputBuffer key = new DataInputBuffer();
+            private final DataInputBuffer value = new DataInputBuffer();
+            private int next = -1;
+
+            @Override
+            public DataInputBuffer getKey() {
+                return key;
+            }
+
+            @Override
+            public DataInputBuffer getValue() {
+                return value;
+            }
+
+            @Override
+            public boolean next() {
+                if (++next == order.length) return false;
+                int i = order[next];
+                key.reset(bytes, input.offsets[i], input.keyLengths[i]);
+                value.reset(bytes, input.offsets[i] + input.keyLengths[i], input.lengths[i] - input.keyLengths[i]);
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public Progress getProgress() {
+                return null;
+            }
+        };
+
+        ReduceContextImpl context = new ReduceContextImpl(conf, id, sorted,
+                counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS), counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS),
+                output, null, new Reporter(counters), comparator, input.keyClass, input.valueClass);
+        reducer.run(new WrappedReducer().getReducerContext(context));
+        return System.nanoTime() - start;
+    }
+
+    static List<Writable[]> generate(String corpus, int records, double skew, Configuration conf) {
+        Random random = new Random(42);
+        List<Writable[]> input = new ArrayList<Writable[]>(records);
+        StringBuilder line = new StringBuilder();
+
+        if (corpus.equals("titles")) {
+            int vocabulary = conf.getInt("bench.vocabulary", 100000);
+            Zipf words = new Zipf(vocabulary, skew);
+            long offset = 0;
+            for (int i = 0; i < records; i++) {
+                line.setLength(0);
+                int length = 1 + random.nextInt(8);
+                for (int w = 0; w < length; w++) {
+                    if (w > 0) line.append('_');
+                    word(words.next(random), line);
+                }
+                input.add(new Writable[] {new LongWritable(offset), new Text(line.toString())});
+                offset += line.length() + 1;
+            }
+        } else if (corpus.equals("links")) {
+            int pages = conf.getInt("bench.pages", 1000000);
+            Zipf targets = new Zipf(pages, skew);
+            Zipf degrees = new Zipf(conf.getInt("bench.degree", 100), skew);
+            long offset = 0;
+            for (int i = 0; i < records; i++) {
+                line.setLength(0);
+                line.append(random.nextInt(pages) + 1).append(':');
+                int degree = degrees.next(random);
+                for (int t = 0; t < degree; t++) {
+                    line.append(' ').append(targets.next(random));
+                }
+                input.add(new Writable[] {new LongWritable(offset), new Text(line.toString())});
+                offset += line.length() + 1;
+            }
+        } else if (corpus.equals("word-counts") || corpus.equals("page-counts")) {
+            boolean words = corpus.equals("word-counts");
+            Zipf counts = new Zipf(records, skew);
+            for (int i = 0; i < records; i++) {
+                line.setLength(0);
+                if (words) {
+                    word(i + 1, line);
+                } else {
+                    line.append(i + 1);
+                }
+                // the rank drawn for a key becomes its count: a few keys are very common
+                int count = Math.max(1, records / counts.next(random));
+                input.add(new Writable[] {new Text(line.toString()), new Text(Integer.toString(count))});
+            }
+        } else {
+            throw new IllegalArgumentException("unknown corpus " + corpus);
+        }
+        return input;
+    }
+
+    // The rank in base 26, so that common words are short
+    private static void word(int rank, StringBuilder out) {
+        int start = out.length();
+        for (int n = rank; n > 0; n = (n - 1) / 26) {
+            out.insert(start, (char) ('a' + (n - 1) % 26));
+        }
+    }
+
+    // Samples ranks 1..n with probability proportional to 1 / rank^skew
+    static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble());
+            return (i < 0 ? -i - 1 : i) + 1;
+        }
+    }
+}
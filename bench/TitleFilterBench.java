@@ -0,0 +1,77 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+// Compares the TitleCountMap tokenize + stop word path before and after
+// TitleFilter over a local copy of the titles and misc files.
+//
+//   bench.sh TitleCount TitleFilterBench <titles> <stopwords> <delimiters>
+public class TitleFilterBench {
+    public static void main(String[] args) throws Exception {
+        List<String> lines = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+        String stopWords = readFile(args[1]);
+        String delimiters = readFile(args[2]);
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        List<String> stopWordList = Arrays.asList(stopWords.split("\n"));
+        TitleCount.TitleFilter filter = new TitleCount.TitleFilter(stopWords, delimiters);
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            int before = tokenizerPath(lines, stopWordList, delimiters);
+            long mid = System.nanoTime();
+            int after = filterPath(lines, filter);
+            long end = System.nanoTime();
+
+            if (before != after) {
+                throw new IllegalStateException("token counts differ: " + before + " != " + after);
+            }
+            System.out.printf("round %d: %d tokens, StringTokenizer+List %.1f ms, TitleFilter %.1f ms%n",
+                round, after, (mid - start) / 1e6, (end - mid) / 1e6);
+        }
+    }
+
+    static int tokenizerPath(List<String> lines, List<String> stopWords, String delimiters) {
+        int emitted = 0;
+        for (String line : lines) {
+            StringTokenizer st = new StringTokenizer(line, delimiters);
+            while (st.hasMoreTokens()) {
+                String title = st.nextToken();
+                if (!stopWords.contains(title.trim().toLowerCase())) emitted++;
+            }
+        }
+        return emitted;
+    }
+
+    static int filterPath(List<String> lines, TitleCount.TitleFilter filter) {
+        int emitted = 0;
+        for (String line : lines) {
+            int start = -1;
+            for (int i = 0; i <= line.length(); i++) {
+                if (i < line.length() && !filter.isDelimiter(line.charAt(i))) {
+                    if (start < 0) start = i;
+                    continue;
+                }
+                if (start < 0) continue;
+
+                String title = line.substring(start, i).trim().toLowerCase();
+                start = -1;
+                if (!filter.isStopWord(title)) emitted++;
+            }
+        }
+        return emitted;
+    }
+
+    // mirrors readHDFSFile so both paths see the same trailing newline
+    static String readFile(String path) throws Exception {
+        StringBuilder everything = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            everything.append(line);
+            everything.append("\n");
+        }
+        return everything.toString();
+    }
+}